@@ -1,9 +1,13 @@
 package com.ociweb.jpgRaster;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import com.ociweb.jpgRaster.j2r.HuffmanDecoder;
 
 public class JPG {
+	// queued after the last work item to end a persistent scanner
+	public static final String END_OF_INPUT = "";
+	
 	public static class QuantizationTable {
 		public short tableID;
 		public short precision;
@@ -55,11 +59,24 @@ public class JPG {
 		public int restartInterval = 0;
 
 		public ColorComponent[] colorComponents = new ColorComponent[3];
-		public ArrayList<Short> imageData = new ArrayList<Short>();
+		// entropy-coded data of the current scan, a slice of the file data
+		public ByteBuffer imageData;
 		
 		public boolean valid = true;
 	}
 	
+	// part of an image to decode, in pixels of the full size image
+	public static class Region {
+		// the scanner starts at the MCU that holds x and y, rounded down to a multiple of
+		// the largest MCU, so the dumpers can tell how much to trim without the sampling factors
+		public static final int ALIGNMENT = 16;
+		
+		public int x;
+		public int y;
+		public int width;
+		public int height;
+	}
+	
 	public static class MCU {
 		public short[] y = new short[64];
 		public short[] cb = new short[64];
@@ -292,7 +309,40 @@ public class JPG {
 		}
 		ACTableCodes1 = HuffmanDecoder.generateCodes(hACTable1);
 	}
-	
+
+	/**
+	 * Scales the example luminance (tableID 0) or chrominance (tableID 1) table of the
+	 * JPEG standard the way the IJG encoder does, so 50 gives the example table itself
+	 * and 100 gives a table of all 1s.
+	 * @param tableID
+	 * @param quality from 1 to 100, values outside are clamped
+	 */
+	public static QuantizationTable scaledQuantizationTable(int tableID, int quality) {
+		if (quality < 1) {
+			quality = 1;
+		}
+		else if (quality > 100) {
+			quality = 100;
+		}
+		int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+		int[] base = tableID == 0 ? qTable0Vals_50 : qTable1Vals_50;
+
+		QuantizationTable table = new QuantizationTable();
+		table.precision = 8;
+		table.tableID = (short)tableID;
+		for (int i = 0; i < 64; ++i) {
+			int value = (base[i] * scale + 50) / 100;
+			if (value < 1) {
+				value = 1;
+			}
+			else if (value > 255) {
+				value = 255;
+			}
+			table.table[i] = value;
+		}
+		return table;
+	}
+
 	public static void printMCU(MCU mcu) {
 		System.out.println("Y:");
 		for (int i = 0; i < 8; ++i) {
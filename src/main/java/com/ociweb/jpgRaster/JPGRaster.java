@@ -1,16 +1,24 @@
 package com.ociweb.jpgRaster;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.ociweb.jpgRaster.j2r.BMPDumperStage;
+import com.ociweb.jpgRaster.j2r.FusedDecoderStage;
 import com.ociweb.jpgRaster.j2r.InverseDCTStage;
 import com.ociweb.jpgRaster.j2r.InverseQuantizerStage;
 import com.ociweb.jpgRaster.j2r.JPGScannerStage;
+import com.ociweb.jpgRaster.j2r.MCUJoinerStage;
+import com.ociweb.jpgRaster.j2r.MCUSplitterStage;
 import com.ociweb.jpgRaster.j2r.YCbCrToRGBStage;
 import com.ociweb.jpgRaster.r2j.BMPScannerStage;
+import com.ociweb.jpgRaster.r2j.DownsamplerStage;
 import com.ociweb.jpgRaster.r2j.ForwardDCTStage;
 import com.ociweb.jpgRaster.r2j.HuffmanEncoderStage;
 import com.ociweb.jpgRaster.r2j.QuantizerStage;
@@ -26,6 +34,111 @@ public class JPGRaster {
 		boolean verbose = hasArg("--verbose", "-v", args);
 		boolean time = hasArg("--time", "-t", args);
 		boolean encode = hasArg("--encode", "-e", args);
+		boolean parallelRestarts = hasArg("--parallel-restarts", "-r", args);
+		boolean fused = hasArg("--fused", "-u", args);
+		boolean stream = hasArg("--stream", "-s", args);
+		boolean mmap = hasArg("--mmap", "-m", args);
+		boolean daemon = hasArg("--daemon", "-d", args);
+		boolean optimize = hasArg("--optimize", "-o", args);
+		boolean progressive = hasArg("--progressive", "-g", args);
+		
+		String defaultIDCT = "float";
+		boolean integerIDCT = getOptArg("--idct", "-i", args, defaultIDCT).equals("int");
+		String defaultFDCT = "float";
+		boolean aanFDCT = getOptArg("--fdct", "-a", args, defaultFDCT).equals("aan");
+		String defaultColor = "int";
+		boolean floatColor = getOptArg("--color", "-c", args, defaultColor).equals("float");
+		
+		String defaultBatch = "64";
+		String batchString = getOptArg("--batch", "-b", args, defaultBatch);
+		int batchSize = 64;
+		try {
+			batchSize = Integer.parseInt(batchString);
+			if (batchSize < 4) {
+				batchSize = 4;
+			}
+			// keep whole 2x2 MCUs in a batch
+			batchSize += (4 - batchSize % 4) % 4;
+		}
+		catch (Exception e) {}
+		
+		String defaultLanes = "1";
+		String lanesString = getOptArg("--lanes", "-l", args, defaultLanes);
+		int lanes = 1;
+		try {
+			lanes = Math.max(1, Integer.parseInt(lanesString));
+		}
+		catch (Exception e) {}
+		
+		String defaultWorkers = "1";
+		String workersString = getOptArg("--workers", "-w", args, defaultWorkers);
+		int workers = 1;
+		try {
+			workers = Math.max(1, Integer.parseInt(workersString));
+		}
+		catch (Exception e) {}
+		
+		String defaultScale = "1";
+		String scaleString = getOptArg("--scale", "-z", args, defaultScale);
+		int scale = 1;
+		try {
+			scale = Integer.parseInt(scaleString);
+			if (scale != 1 && scale != 2 && scale != 4 && scale != 8) {
+				scale = 1;
+			}
+		}
+		catch (Exception e) {}
+		// a block of 8x8 pixels shrinks to 4x4, 2x2 or a single pixel
+		int blockSize = 8 / scale;
+		
+		// chroma resolution of encoded images, 444 keeps every Cb and Cr value,
+		// 422 halves them across and 420 both across and down
+		String defaultSubsampling = "444";
+		String subsamplingString = getOptArg("--subsampling", "-y", args, defaultSubsampling);
+		int horizontal = 1;
+		int vertical = 1;
+		if (subsamplingString.equals("422")) {
+			horizontal = 2;
+		}
+		else if (subsamplingString.equals("420")) {
+			horizontal = 2;
+			vertical = 2;
+		}
+		
+		// MCUs between restart markers of encoded images, 0 for none
+		String defaultRestart = "0";
+		String restartString = getOptArg("--restart-interval", "-n", args, defaultRestart);
+		int restartInterval = 0;
+		try {
+			// the DRI segment holds the interval in 16 bits
+			restartInterval = Math.max(0, Math.min(65535, Integer.parseInt(restartString)));
+		}
+		catch (Exception e) {}
+		if (progressive && restartInterval > 0) {
+			System.out.println("Warning: -n is ignored with -g, progressive JPGs are written without restart markers");
+			restartInterval = 0;
+		}
+		
+		// x,y,width,height in pixels of the full size image
+		String defaultCrop = "";
+		String cropString = getOptArg("--crop", "-x", args, defaultCrop);
+		JPG.Region region = null;
+		try {
+			String[] values = cropString.split(",");
+			if (values.length == 4) {
+				region = new JPG.Region();
+				region.x = Integer.parseInt(values[0].trim());
+				region.y = Integer.parseInt(values[1].trim());
+				region.width = Integer.parseInt(values[2].trim());
+				region.height = Integer.parseInt(values[3].trim());
+				if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0) {
+					region = null;
+				}
+			}
+		}
+		catch (Exception e) {
+			region = null;
+		}
 		
 		ArrayList<String> inputFilePaths = getOptNArg("--file", "-f", args);
 
@@ -39,28 +152,42 @@ public class JPGRaster {
 			catch (Exception e) {}
 		}
 		
-		if (inputFiles.size() == 0 || hasArg("--help", "-h", args)) {
-			System.out.println("Usage: j2r [ -e [ -q 50 | 75 | 100 ] ] -f file1 [ file2 ... ] [ -v ] [ -t ] [ -p port ]");
+		if ((inputFiles.size() == 0 && !daemon) || hasArg("--help", "-h", args)) {
+			System.out.println("Usage: j2r [ -e [ -q 1..100 ] [ -o ] [ -g ] [ -n 0..65535 (not with -g) ] [ -y 444 | 422 | 420 ] [ -a float | aan ] ] [ -f file1 [ file2 ... ] ] [ -d ] [ -l 1 ] [ -w 1 ] [ -z 1 | 2 | 4 | 8 ] [ -x x,y,width,height ] [ -r ] [ -u ] [ -s ] [ -m ] [ -i float | int ] [ -c int | float ] [ -b 64 ] [ -v ] [ -t ] [ -p port ]");
 			return;
 		}
 		
 		GraphManager gm = new GraphManager();
 		
+		// in daemon mode the graph stays up, taking more files from stdin until it is closed
+		Queue<String> work = null;
+		if (daemon) {
+			work = new ConcurrentLinkedQueue<String>(inputFiles);
+		}
+		
 		if (encode) {
 			String defaultQuality = "";
 			String qualityString = getOptArg("--quality", "-q", args, defaultQuality);
 			int quality = 75;
 			try {
 				quality = Integer.parseInt(qualityString);
-				if (quality != 50 && quality != 75 && quality != 100) {
+				if (quality < 1 || quality > 100) {
 					quality = 75;
 				}
 			}
 			catch (Exception e) {}
-			populateEncoderGraph(gm, inputFiles, verbose, time, quality);
+			lanes = 1;
+			populateEncoderGraph(gm, inputFiles, work, verbose, time, mmap, stream, quality, optimize, progressive, restartInterval, aanFDCT, horizontal, vertical, batchSize);
 		}
 		else {
-			populateDecoderGraph(gm, inputFiles, verbose, time);
+			if (!daemon) {
+				// every lane ends on the final header of its last file
+				lanes = Math.min(lanes, inputFiles.size());
+			}
+			ArrayList<ArrayList<String>> laneFiles = splitFiles(inputFiles, lanes);
+			for (int i = 0; i < lanes; ++i) {
+				populateDecoderGraph(gm, laneFiles.get(i), work, verbose, time, mmap, parallelRestarts, fused, stream, integerIDCT, floatColor, batchSize, workers, blockSize, region);
+			}
 		}
 		
 		String defaultPort = "";
@@ -77,39 +204,144 @@ public class JPGRaster {
 		}
 		
 		StageScheduler.defaultScheduler(gm).startup();
+		
+		if (daemon) {
+			readWork(work, lanes);
+		}
+	}
+	
+	// one file per line, each answered by the output file name or "Error: " and the input name
+	private static void readWork(Queue<String> work, int lanes) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			String file = line.trim();
+			if (file.length() == 0) {
+				continue;
+			}
+			if (Files.isRegularFile(new File(file).toPath())) {
+				work.add(file);
+			}
+			else {
+				System.out.println("Error: " + file);
+			}
+		}
+		// the lanes share the queue, so each one needs its own end
+		for (int i = 0; i < lanes; ++i) {
+			work.add(JPG.END_OF_INPUT);
+		}
+	}
+	
+	// routes each file to the lane with the fewest bytes so far, so one lane decodes its files in order
+	private static ArrayList<ArrayList<String>> splitFiles(ArrayList<String> inputFiles, int lanes) {
+		ArrayList<ArrayList<String>> laneFiles = new ArrayList<ArrayList<String>>(lanes);
+		long[] laneBytes = new long[lanes];
+		for (int i = 0; i < lanes; ++i) {
+			laneFiles.add(new ArrayList<String>());
+		}
+		for (String file : inputFiles) {
+			int lane = 0;
+			for (int i = 1; i < lanes; ++i) {
+				if (laneBytes[i] < laneBytes[lane]) {
+					lane = i;
+				}
+			}
+			laneFiles.get(lane).add(file);
+			laneBytes[lane] += Math.max(1, new File(file).length());
+		}
+		return laneFiles;
 	}
 
 
-	private static void populateDecoderGraph(GraphManager gm, ArrayList<String> inputFiles, boolean verbose, boolean time) {
-		
-		Pipe<JPGSchema> pipe1 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe2 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe3 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe4 = JPGSchema.instance.newPipe(500, 200);
-		
-		new JPGScannerStage(gm, pipe1, verbose, inputFiles);
-		new InverseQuantizerStage(gm, pipe1, pipe2, verbose);
-		new InverseDCTStage(gm, pipe2, pipe3, verbose);
-		new YCbCrToRGBStage(gm, pipe3, pipe4, verbose);
-		new BMPDumperStage(gm, pipe4, verbose, time);
+	private static void populateDecoderGraph(GraphManager gm, ArrayList<String> inputFiles, Queue<String> work, boolean verbose, boolean time, boolean mmap, boolean parallelRestarts, boolean fused, boolean stream, boolean integerIDCT, boolean floatColor, int batchSize, int workers, int blockSize, JPG.Region region) {
+		
+		Pipe<JPGSchema> pipe1 = newPipe(batchSize);
+		
+		if (work != null) {
+			new JPGScannerStage(gm, pipe1, verbose, parallelRestarts, mmap, blockSize, region, work, null);
+		}
+		else {
+			new JPGScannerStage(gm, pipe1, verbose, parallelRestarts, mmap, blockSize, region, inputFiles);
+		}
+		
+		Pipe<JPGSchema> pipe2 = newPipe(batchSize);
+		
+		if (workers > 1) {
+			// each batch of MCUs is independent once it has been entropy decoded
+			Pipe<JPGSchema>[] workerInputs = newPipes(workers, batchSize);
+			Pipe<JPGSchema>[] workerOutputs = newPipes(workers, batchSize);
+			for (int i = 0; i < workers; ++i) {
+				populateDecoderWorker(gm, workerInputs[i], workerOutputs[i], verbose, fused, integerIDCT, floatColor, batchSize, blockSize);
+			}
+			new MCUSplitterStage(gm, pipe1, workerInputs, verbose);
+			new MCUJoinerStage(gm, workerOutputs, pipe2, verbose);
+		}
+		else {
+			populateDecoderWorker(gm, pipe1, pipe2, verbose, fused, integerIDCT, floatColor, batchSize, blockSize);
+		}
+		
+		new BMPDumperStage(gm, pipe2, verbose, time, stream, work != null, blockSize, region);
 
 	}
+	
+	// everything between the scanner and the dumper
+	private static void populateDecoderWorker(GraphManager gm, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean fused, boolean integerIDCT, boolean floatColor, int batchSize, int blockSize) {
+		
+		if (fused) {
+			// single pass, the separate stages below are kept for diagnostics
+			new FusedDecoderStage(gm, input, output, verbose, integerIDCT, floatColor, blockSize);
+			return;
+		}
+		
+		Pipe<JPGSchema> pipe2 = newPipe(batchSize);
+		Pipe<JPGSchema> pipe3 = newPipe(batchSize);
+		
+		new InverseQuantizerStage(gm, input, pipe2, verbose, blockSize);
+		new InverseDCTStage(gm, pipe2, pipe3, verbose, integerIDCT, blockSize);
+		new YCbCrToRGBStage(gm, pipe3, output, verbose, floatColor, blockSize);
+	}
 
-	private static void populateEncoderGraph(GraphManager gm, ArrayList<String> inputFiles, boolean verbose, boolean time, int quality) {
+	private static void populateEncoderGraph(GraphManager gm, ArrayList<String> inputFiles, Queue<String> work, boolean verbose, boolean time, boolean mmap, boolean stream, int quality, boolean optimize, boolean progressive, int restartInterval, boolean aanFDCT, int horizontal, int vertical, int batchSize) {
 		
-		Pipe<JPGSchema> pipe1 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe2 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe3 = JPGSchema.instance.newPipe(500, 200);
-		Pipe<JPGSchema> pipe4 = JPGSchema.instance.newPipe(500, 200);
+		Pipe<JPGSchema> pipe1 = newPipe(batchSize);
+		Pipe<JPGSchema> pipe2 = newPipe(batchSize);
+		Pipe<JPGSchema> pipe3 = newPipe(batchSize);
+		Pipe<JPGSchema> pipe4 = newPipe(batchSize);
 		
-		new BMPScannerStage(gm, pipe1, verbose, inputFiles);
+		if (work != null) {
+			new BMPScannerStage(gm, pipe1, verbose, mmap, stream, horizontal, vertical, work);
+		}
+		else {
+			new BMPScannerStage(gm, pipe1, verbose, mmap, stream, horizontal, vertical, inputFiles);
+		}
 		new RGBToYCbCrStage(gm, pipe1, pipe2, verbose);
-		new ForwardDCTStage(gm, pipe2, pipe3, verbose);
-		new QuantizerStage(gm, pipe3, pipe4, verbose, quality);
-		new HuffmanEncoderStage(gm, pipe4, verbose, time, quality);
+		if (horizontal * vertical > 1) {
+			Pipe<JPGSchema> downsampled = newPipe(batchSize);
+			new DownsamplerStage(gm, pipe2, downsampled, verbose, horizontal, vertical);
+			pipe2 = downsampled;
+		}
+		new ForwardDCTStage(gm, pipe2, pipe3, verbose, aanFDCT, horizontal, vertical);
+		new QuantizerStage(gm, pipe3, pipe4, verbose, quality, aanFDCT, horizontal, vertical);
+		new HuffmanEncoderStage(gm, pipe4, verbose, time, quality, work != null, optimize, progressive, restartInterval, horizontal, vertical);
+	
+	}
 	
+	// each pipe carries MCUBatchMessages of batchSize MCUs, so fewer slots are needed as batches grow,
+	// but the scanner still needs room for a header and its tables before it starts a file
+	static Pipe<JPGSchema> newPipe(int batchSize) {
+		return JPGSchema.instance.newPipe(Math.max(100, 500 / batchSize), batchSize * MCUBatch.bytesPerMCU(8));
 	}
 	
+	// generic arrays cannot be created directly
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	static Pipe<JPGSchema>[] newPipes(int count, int batchSize) {
+		Pipe<JPGSchema>[] pipes = new Pipe[count];
+		for (int i = 0; i < count; ++i) {
+			pipes[i] = newPipe(batchSize);
+		}
+		return pipes;
+	}
+
 	public static String getOptArg(String longName, String shortName, String[] args, String defaultValue) {
         
         String prev = null;
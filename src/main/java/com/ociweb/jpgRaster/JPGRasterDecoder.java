@@ -0,0 +1,211 @@
+package com.ociweb.jpgRaster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ociweb.jpgRaster.j2r.FusedDecoderStage;
+import com.ociweb.jpgRaster.j2r.InverseDCTStage;
+import com.ociweb.jpgRaster.j2r.InverseQuantizerStage;
+import com.ociweb.jpgRaster.j2r.JPGScannerStage;
+import com.ociweb.jpgRaster.j2r.RasterDumperStage;
+import com.ociweb.jpgRaster.j2r.YCbCrToRGBStage;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+
+/**
+ * Decodes JPGs held in memory into Rasters, for use as a library.
+ * The decoder graph is started once and shared by every call to decode,
+ * so one instance should be kept for the life of the application and closed at the end.
+ * Nothing is written to disk and the JVM is never exited.
+ */
+public class JPGRasterDecoder implements Closeable {
+
+	private static class Request {
+		final byte[] pixels;
+		final CountDownLatch done = new CountDownLatch(1);
+		Raster raster;
+		String error;
+
+		Request(byte[] pixels) {
+			this.pixels = pixels;
+		}
+	}
+
+	private final Map<String, ByteBuffer> images = new ConcurrentHashMap<String, ByteBuffer>();
+	private final ConcurrentLinkedQueue<String> names = new ConcurrentLinkedQueue<String>();
+	private final Map<String, Request> requests = new ConcurrentHashMap<String, Request>();
+	private final AtomicLong nextId = new AtomicLong(0);
+	private final StageScheduler scheduler;
+	private volatile boolean closed = false;
+
+	public JPGRasterDecoder() {
+		this(false, false, false, 64);
+	}
+
+	/**
+	 * @param fused use the single fused decoder stage
+	 * @param integerIDCT use the scaled integer inverse DCT
+	 * @param floatColor convert colors in floating point instead of with lookup tables
+	 * @param batchSize MCUs per pipe fragment, a multiple of 4
+	 */
+	public JPGRasterDecoder(boolean fused, boolean integerIDCT, boolean floatColor, int batchSize) {
+		this(fused, integerIDCT, floatColor, batchSize, 1);
+	}
+
+	/**
+	 * @param fused use the single fused decoder stage
+	 * @param integerIDCT use the scaled integer inverse DCT
+	 * @param floatColor convert colors in floating point instead of with lookup tables
+	 * @param batchSize MCUs per pipe fragment, a multiple of 4
+	 * @param scale 1 for full size Rasters, 2 or 4 for Rasters scaled down with reduced inverse DCTs,
+	 *        or 8 for previews made from the DC values alone
+	 */
+	public JPGRasterDecoder(boolean fused, boolean integerIDCT, boolean floatColor, int batchSize, int scale) {
+		this(fused, integerIDCT, floatColor, batchSize, scale, null);
+	}
+
+	/**
+	 * @param fused use the single fused decoder stage
+	 * @param integerIDCT use the scaled integer inverse DCT
+	 * @param floatColor convert colors in floating point instead of with lookup tables
+	 * @param batchSize MCUs per pipe fragment, a multiple of 4
+	 * @param scale 1 for full size Rasters, 2 or 4 for Rasters scaled down with reduced inverse DCTs,
+	 *        or 8 for previews made from the DC values alone
+	 * @param region part of every image to decode, in pixels of the full size image, or null for all of it;
+	 *        the Raster is cut off at the image edges, and images the region misses are invalid
+	 */
+	public JPGRasterDecoder(boolean fused, boolean integerIDCT, boolean floatColor, int batchSize, int scale, JPG.Region region) {
+		if (scale != 1 && scale != 2 && scale != 4 && scale != 8) {
+			throw new IllegalArgumentException("Unsupported scale 1/" + scale);
+		}
+		int blockSize = 8 / scale;
+		GraphManager gm = new GraphManager();
+
+		Pipe<JPGSchema> pipe1 = JPGRaster.newPipe(batchSize);
+		new JPGScannerStage(gm, pipe1, false, false, false, blockSize, region, names, images);
+
+		Pipe<JPGSchema> last;
+		if (fused) {
+			last = JPGRaster.newPipe(batchSize);
+			new FusedDecoderStage(gm, pipe1, last, false, integerIDCT, floatColor, blockSize);
+		}
+		else {
+			Pipe<JPGSchema> pipe2 = JPGRaster.newPipe(batchSize);
+			Pipe<JPGSchema> pipe3 = JPGRaster.newPipe(batchSize);
+			last = JPGRaster.newPipe(batchSize);
+			new InverseQuantizerStage(gm, pipe1, pipe2, false, blockSize);
+			new InverseDCTStage(gm, pipe2, pipe3, false, integerIDCT, blockSize);
+			new YCbCrToRGBStage(gm, pipe3, last, false, floatColor, blockSize);
+		}
+
+		new RasterDumperStage(gm, last, false, blockSize, region, new RasterDumperStage.Listener() {
+			@Override
+			public byte[] pixels(String name, int width, int height) {
+				Request request = requests.get(name);
+				if (request == null) {
+					// the caller gave up on this image
+					return null;
+				}
+				if (request.pixels == null) {
+					return new byte[width * height * 3];
+				}
+				if (request.pixels.length < width * height * 3) {
+					request.error = "Pixel buffer too small for " + width + "x" + height + " image";
+					return null;
+				}
+				return request.pixels;
+			}
+
+			@Override
+			public void decoded(String name, Raster raster) {
+				Request request = requests.remove(name);
+				if (request != null) {
+					request.raster = raster;
+					request.done.countDown();
+				}
+			}
+		});
+
+		scheduler = StageScheduler.defaultScheduler(gm);
+		scheduler.startup();
+	}
+
+	/**
+	 * Decodes a JPG into a newly allocated Raster.
+	 * @param jpg the whole JPG file, from its position to its limit; the buffer itself is not modified
+	 */
+	public Raster decode(ByteBuffer jpg) throws IOException {
+		return decode(jpg, null);
+	}
+
+	/**
+	 * Decodes a JPG into the caller's pixel buffer.
+	 * @param jpg the whole JPG file, from its position to its limit; the buffer itself is not modified
+	 * @param pixels buffer of at least width * height * 3 bytes, filled with RGB rows top to bottom
+	 */
+	public Raster decode(ByteBuffer jpg, byte[] pixels) throws IOException {
+		if (closed) {
+			throw new IOException("Decoder is closed");
+		}
+		String name = "image-" + nextId.incrementAndGet();
+		Request request = new Request(pixels);
+		requests.put(name, request);
+		images.put(name, jpg);
+		names.add(name);
+		if (closed && cancel(name)) {
+			// close may have failed the waiting requests before this one was added
+			throw new IOException("Decoder is closed");
+		}
+
+		try {
+			request.done.await();
+		}
+		catch (InterruptedException e) {
+			// an image the scanner already has is still decoded, but nothing is kept for it
+			cancel(name);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding", e);
+		}
+		if (request.raster == null) {
+			throw new IOException(request.error != null ? request.error : "Invalid JPG");
+		}
+		return request.raster;
+	}
+
+	/**
+	 * Drops a request that has not been answered yet.
+	 * @return false if the graph or close already answered it
+	 */
+	private boolean cancel(String name) {
+		names.remove(name);
+		images.remove(name);
+		return requests.remove(name) != null;
+	}
+
+	/**
+	 * Stops the decoder graph. Calls to decode that are still waiting throw an IOException.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			scheduler.shutdown();
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			for (String name : requests.keySet()) {
+				Request request = requests.get(name);
+				if (request != null && cancel(name)) {
+					request.error = "Decoder is closed";
+					request.done.countDown();
+				}
+			}
+		}
+	}
+}
@@ -13,15 +13,15 @@ public class JPGSchema extends MessageSchema<JPGSchema> {
 	}
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-	    new int[]{0xc0400005,0x88000000,0x88000001,0xa0000000,0x88000002,0xc0200005,0xc0400005,0x88000003,0x88000004,0x88000005,0x88000006,0xc0200005,0xc0400004,0x88000007,0x88000008,0xb8000001,0xc0200004,0xc0400004,0xb8000002,0xb8000003,0xb8000004,0xc0200004},
+	    new int[]{0xc0400005,0x88000000,0x88000001,0xa0000000,0x88000002,0xc0200005,0xc0400005,0x88000003,0x88000004,0x88000005,0x88000006,0xc0200005,0xc0400004,0x88000007,0x88000008,0xb8000001,0xc0200004,0xc0400004,0xb8000002,0xb8000003,0xb8000004,0xc0200004,0xc0400003,0x88000009,0xb8000005,0xc0200003},
 	    (short)0,
 	    new String[]{"HeaderMessage","height","width","filename","final",null,"ColorComponentMessage",
 	    "componentID","horizontalSamplingFactor","verticalSamplingFactor","quantizationTableID",
 	    null,"QuantizationTableMessage","tableId","precision","table",null,"MCUMessage","y",
-	    "cb","cr",null},
-	    new long[]{1, 101, 201, 301, 401, 0, 2, 102, 202, 302, 402, 0, 3, 103, 203, 303, 0, 4, 104, 204, 304, 0},
+	    "cb","cr",null,"MCUBatchMessage","count","mcus",null},
+	    new long[]{1, 101, 201, 301, 401, 0, 2, 102, 202, 302, 402, 0, 3, 103, 203, 303, 0, 4, 104, 204, 304, 0, 5, 105, 205, 0},
 	    new String[]{"global",null,null,null,null,null,"global",null,null,null,null,null,"global",null,
-	    null,null,null,"global",null,null,null,null},
+	    null,null,null,"global",null,null,null,null,"global",null,null,null},
 	    "JPGSchema.xml",
 	    new long[]{2, 2, 0},
 	    new int[]{2, 2, 0});
@@ -50,6 +50,9 @@ public class JPGSchema extends MessageSchema<JPGSchema> {
 	public static final int MSG_MCUMESSAGE_4_FIELD_Y_104 = 0x01c00001; //ByteVector/None/2
 	public static final int MSG_MCUMESSAGE_4_FIELD_CB_204 = 0x01c00003; //ByteVector/None/3
 	public static final int MSG_MCUMESSAGE_4_FIELD_CR_304 = 0x01c00005; //ByteVector/None/4
+	public static final int MSG_MCUBATCHMESSAGE_5 = 0x00000016; //Group/OpenTempl/3
+	public static final int MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105 = 0x00400001; //IntegerSigned/None/9
+	public static final int MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205 = 0x01c00002; //ByteVector/None/5
 
 	public static void consume(Pipe<JPGSchema> input) {
 	    while (PipeReader.tryReadFragment(input)) {
@@ -67,6 +70,9 @@ public class JPGSchema extends MessageSchema<JPGSchema> {
 	            case MSG_MCUMESSAGE_4:
 	                consumeMCUMessage(input);
 	            break;
+	            case MSG_MCUBATCHMESSAGE_5:
+	                consumeMCUBatchMessage(input);
+	            break;
 	            case -1:
 	               //requestShutdown();
 	            break;
@@ -97,6 +103,10 @@ public class JPGSchema extends MessageSchema<JPGSchema> {
 	    DataInputBlobReader<JPGSchema> fieldcb = PipeReader.inputStream(input, MSG_MCUMESSAGE_4_FIELD_CB_204);
 	    DataInputBlobReader<JPGSchema> fieldcr = PipeReader.inputStream(input, MSG_MCUMESSAGE_4_FIELD_CR_304);
 	}
+	public static void consumeMCUBatchMessage(Pipe<JPGSchema> input) {
+	    int fieldcount = PipeReader.readInt(input,MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105);
+	    DataInputBlobReader<JPGSchema> fieldmcus = PipeReader.inputStream(input, MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205);
+	}
 
 	public static void publishHeaderMessage(Pipe<JPGSchema> output, int fieldheight, int fieldwidth, CharSequence fieldfilename, int fieldfinal) {
 	    PipeWriter.presumeWriteFragment(output, MSG_HEADERMESSAGE_1);
@@ -128,5 +138,11 @@ public class JPGSchema extends MessageSchema<JPGSchema> {
 	    PipeWriter.writeBytes(output,MSG_MCUMESSAGE_4_FIELD_CR_304, fieldcrBacking, fieldcrPosition, fieldcrLength);
 	    PipeWriter.publishWrites(output);
 	}
+	public static void publishMCUBatchMessage(Pipe<JPGSchema> output, int fieldcount, byte[] fieldmcusBacking, int fieldmcusPosition, int fieldmcusLength) {
+	    PipeWriter.presumeWriteFragment(output, MSG_MCUBATCHMESSAGE_5);
+	    PipeWriter.writeInt(output,MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105, fieldcount);
+	    PipeWriter.writeBytes(output,MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205, fieldmcusBacking, fieldmcusPosition, fieldmcusLength);
+	    PipeWriter.publishWrites(output);
+	}
 
 }
@@ -0,0 +1,189 @@
+package com.ociweb.jpgRaster;
+
+import com.ociweb.jpgRaster.JPG.MCU;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+/**
+ * A batch of MCUs that travels on a JPG schema pipe as a single MCUBatchMessage.
+ * The y, cb and cr values of every MCU in the batch are packed into one
+ * byteVector, so the cost of a fragment is paid once per batch instead of
+ * once per 8x8 block.
+ * Scaled decodes only carry the top left blockSize x blockSize values of each component.
+ */
+public class MCUBatch {
+
+	public final MCU[] mcus;
+	public int count = 0;
+	private final byte[] bytes;
+	private final int blockSize;
+
+	/**
+	 * @param capacity number of MCUs
+	 * @param blockSize width and height of the values carried for each component, 8 for whole blocks
+	 */
+	public MCUBatch(int capacity, int blockSize) {
+		mcus = new MCU[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			mcus[i] = new MCU();
+		}
+		this.blockSize = blockSize;
+		bytes = new byte[capacity * bytesPerMCU(blockSize)];
+	}
+
+	/**
+	 * Creates the largest batch that fits in one variable length field of the pipe.
+	 */
+	public MCUBatch(Pipe<JPGSchema> pipe) {
+		this(pipe, 8);
+	}
+
+	public MCUBatch(Pipe<JPGSchema> pipe, int blockSize) {
+		this(capacity(pipe, blockSize), blockSize);
+	}
+
+	// y, cb and cr, blockSize x blockSize shorts each
+	public static int bytesPerMCU(int blockSize) {
+		return 3 * blockSize * blockSize * 2;
+	}
+
+	/**
+	 * MCUs in the largest batch that fits in one variable length field of the pipe.
+	 * Batches of more than one 2x2 MCU are kept to a multiple of 4 blocks, so that
+	 * a producer never has to split the blocks of an MCU across two batches.
+	 */
+	public static int capacity(Pipe<JPGSchema> pipe, int blockSize) {
+		int capacity = pipe.maxVarLen / bytesPerMCU(blockSize);
+		if (capacity > 4) {
+			capacity -= capacity % 4;
+		}
+		return Math.max(capacity, 1);
+	}
+
+	public int capacity() {
+		return mcus.length;
+	}
+
+	// returns the next free MCU of the batch, to be filled in place
+	public MCU next() {
+		return mcus[count++];
+	}
+
+	public void add(MCU mcu) {
+		copy(mcu, mcus[count++], blockSize);
+	}
+
+	public static void copy(MCU from, MCU to) {
+		System.arraycopy(from.y, 0, to.y, 0, 64);
+		System.arraycopy(from.cb, 0, to.cb, 0, 64);
+		System.arraycopy(from.cr, 0, to.cr, 0, 64);
+	}
+
+	// copies only the top left blockSize x blockSize values of each component
+	public static void copy(MCU from, MCU to, int blockSize) {
+		if (blockSize == 8) {
+			copy(from, to);
+			return;
+		}
+		for (int i = 0; i < blockSize * 8; i += 8) {
+			System.arraycopy(from.y, i, to.y, i, blockSize);
+			System.arraycopy(from.cb, i, to.cb, i, blockSize);
+			System.arraycopy(from.cr, i, to.cr, i, blockSize);
+		}
+	}
+
+	/**
+	 * Reads the MCUs of the fragment the pipe is on, replacing the contents of the batch.
+	 * Both MCUBatchMessage and the single block MCUMessage are accepted.
+	 * The caller still has to release the read lock.
+	 */
+	public void read(Pipe<JPGSchema> input, int msgIdx) {
+		if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
+			DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
+			MCU mcu = mcus[0];
+			for (int i = 0; i < 64; ++i) {
+				mcu.y[i] = mcuReader.readShort();
+			}
+			for (int i = 0; i < 64; ++i) {
+				mcu.cb[i] = mcuReader.readShort();
+			}
+			for (int i = 0; i < 64; ++i) {
+				mcu.cr[i] = mcuReader.readShort();
+			}
+			count = 1;
+			return;
+		}
+
+		count = PipeReader.readInt(input, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105);
+		DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205);
+		mcuReader.readFully(bytes, 0, count * bytesPerMCU(blockSize));
+		int pos = 0;
+		for (int m = 0; m < count; ++m) {
+			pos = unpack(mcus[m].y, pos);
+			pos = unpack(mcus[m].cb, pos);
+			pos = unpack(mcus[m].cr, pos);
+		}
+	}
+
+	/**
+	 * Writes the batch as one MCUBatchMessage and empties it.
+	 *
+	 * @return false if the pipe had no room for the fragment
+	 */
+	public boolean write(Pipe<JPGSchema> output) {
+		if (!PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUBATCHMESSAGE_5)) {
+			return false;
+		}
+		PipeWriter.writeInt(output, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105, count);
+		int pos = 0;
+		for (int m = 0; m < count; ++m) {
+			pos = pack(mcus[m].y, pos);
+			pos = pack(mcus[m].cb, pos);
+			pos = pack(mcus[m].cr, pos);
+		}
+		DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
+		DataOutputBlobWriter.openField(mcuWriter);
+		mcuWriter.write(bytes, 0, pos);
+		DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205);
+		PipeWriter.publishWrites(output);
+		count = 0;
+		return true;
+	}
+
+	private int pack(short[] component, int pos) {
+		if (blockSize < 8) {
+			for (int i = 0; i < blockSize * 8; i += 8) {
+				for (int j = i; j < i + blockSize; ++j) {
+					bytes[pos++] = (byte)(component[j] >> 8);
+					bytes[pos++] = (byte)component[j];
+				}
+			}
+			return pos;
+		}
+		for (int i = 0; i < 64; ++i) {
+			bytes[pos++] = (byte)(component[i] >> 8);
+			bytes[pos++] = (byte)component[i];
+		}
+		return pos;
+	}
+
+	private int unpack(short[] component, int pos) {
+		if (blockSize < 8) {
+			for (int i = 0; i < blockSize * 8; i += 8) {
+				for (int j = i; j < i + blockSize; ++j) {
+					component[j] = (short)((bytes[pos] << 8) | (bytes[pos + 1] & 0xFF));
+					pos += 2;
+				}
+			}
+			return pos;
+		}
+		for (int i = 0; i < 64; ++i) {
+			component[i] = (short)((bytes[pos] << 8) | (bytes[pos + 1] & 0xFF));
+			pos += 2;
+		}
+		return pos;
+	}
+}
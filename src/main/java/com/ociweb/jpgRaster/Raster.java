@@ -0,0 +1,25 @@
+package com.ociweb.jpgRaster;
+
+/**
+ * A decoded image held in memory.
+ */
+public class Raster {
+	public final int width;
+	public final int height;
+	// 3 bytes per pixel in RGB order, rows top to bottom with no padding
+	public final byte[] pixels;
+	
+	public Raster(int width, int height, byte[] pixels) {
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+	
+	/**
+	 * @return the pixel at (x, y) packed as 0xRRGGBB
+	 */
+	public int getRGB(int x, int y) {
+		int i = (y * width + x) * 3;
+		return (pixels[i] & 0xFF) << 16 | (pixels[i + 1] & 0xFF) << 8 | (pixels[i + 2] & 0xFF);
+	}
+}
@@ -1,10 +1,11 @@
 package com.ociweb.jpgRaster.j2r;
 
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.jpgRaster.JPG.Region;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.stage.PronghornStage;
@@ -12,8 +13,12 @@ import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,11 +33,18 @@ public class BMPDumperStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	boolean verbose;
 	boolean time;
-	private long timer = 0;
+	boolean stream;
+	// report each file on its own line, for clients of a persistent graph
+	boolean persistent;
+	// width and height of the pixels in each block, 8 unless the image is scaled down
+	int blockSize;
+	// region the scanner decoded, or null for whole images
+	Region region;
 	long start;
 	
 	Header header;
 	int last = 0;
+	MCUBatch batch;
 	MCU mcu;
 	
 	short[][] pixels;
@@ -44,6 +56,19 @@ public class BMPDumperStage extends PronghornStage {
 	int mcuWidthReal;
 	int numMCUsReal;
 	int pos;
+	// columns and rows of the first MCUs that are left of or above the region
+	int offsetX;
+	int offsetY;
+	// size of the BMP, the header size less the offsets
+	int width;
+	int height;
+	
+	// streaming mode writes each band of MCU rows as soon as it is complete
+	RandomAccessFile bmpFile;
+	FileChannel bmpChannel;
+	byte[] band;
+	int bandHeight;
+	int rowSize;
 
 	/**
 	 * Takes a JPG schema and allows for verbose output with time.
@@ -53,18 +78,38 @@ public class BMPDumperStage extends PronghornStage {
 	 * @param time
 	 */
 	public BMPDumperStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, boolean time) {
+		this(graphManager, input, verbose, time, false, false, 8, null);
+	}
+	
+	/**
+	 * Takes a JPG schema and allows for verbose output with time.
+	 * @param graphManager
+	 * @param input _in_ Input pipe to be dumped
+	 * @param verbose
+	 * @param time
+	 * @param stream write each band of MCU rows as it completes instead of buffering the whole image
+	 * @param persistent print the name of each BMP as it is written, or "Error: " and the JPG name if it is invalid
+	 * @param blockSize width and height of the pixels in each block, 4, 2 or 1 for images scaled down by 2, 4 or 8
+	 * @param region the region given to the scanner, so the pixels of its first MCUs that are outside of it are dropped
+	 */
+	public BMPDumperStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, boolean time, boolean stream, boolean persistent, int blockSize, Region region) {
 		super(graphManager, input, NONE);
 		this.input = input;
 		this.verbose = verbose;
 		this.time = time;
+		this.stream = stream;
+		this.persistent = persistent;
+		this.blockSize = blockSize;
+		this.region = region;
 		start = System.nanoTime();
+		running.incrementAndGet();
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(input, blockSize);
 	}
 	
 	private static void dump(short[][] pixels, String filename) throws IOException {
@@ -77,16 +122,7 @@ public class BMPDumperStage extends PronghornStage {
 		FileChannel file = fileStream.getChannel();
 		
 		ByteBuffer buffer = ByteBuffer.allocate(size);
-		buffer.put((byte) 'B');
-		buffer.put((byte) 'M');
-		putInt(buffer, size);
-		putInt(buffer, 0);
-		putInt(buffer, 0x1A);
-		putInt(buffer, 12);
-		putShort(buffer, width);
-		putShort(buffer, height);
-		putShort(buffer, 1);
-		putShort(buffer, 24);
+		putBMPHeader(buffer, width, height, size);
 		
 		for (int i = height - 1; i >= 0; --i) {
 			for (int j = 0; j < width * 3 - 2; j += 3) {
@@ -106,6 +142,19 @@ public class BMPDumperStage extends PronghornStage {
 		fileStream.close();
 	}
 	
+	private static void putBMPHeader(ByteBuffer buffer, int width, int height, int size) {
+		buffer.put((byte) 'B');
+		buffer.put((byte) 'M');
+		putInt(buffer, size);
+		putInt(buffer, 0);
+		putInt(buffer, 0x1A);
+		putInt(buffer, 12);
+		putShort(buffer, width);
+		putShort(buffer, height);
+		putShort(buffer, 1);
+		putShort(buffer, 24);
+	}
+	
 	private static void putInt(ByteBuffer buffer, int v) {
 		buffer.put((byte)(v & 0xFF));
 		buffer.put((byte)((v >> 8) & 0xFF));
@@ -118,15 +167,89 @@ public class BMPDumperStage extends PronghornStage {
 		buffer.put((byte)((v >> 8) & 0xFF));
 	}
 	
+	private static String bmpFilename(String filename) {
+		int extension = filename.lastIndexOf('.');
+		if (extension == -1) {
+			return filename + ".bmp";
+		}
+		return filename.substring(0, extension) + ".bmp";
+	}
+	
+	// creates the full size file up front, so bands can be written in any order
+	private void openBMP() throws IOException {
+		header.filename = bmpFilename(header.filename);
+		if (verbose) {
+			System.out.println("Streaming to '" + header.filename + "'...");
+		}
+		bandHeight = blockSize * header.colorComponents[0].verticalSamplingFactor;
+		rowSize = width * 3 + (4 - (width * 3) % 4) % 4;
+		if (band == null || band.length < bandHeight * rowSize) {
+			band = new byte[bandHeight * rowSize];
+		}
+		else {
+			// the row padding must be zero
+			Arrays.fill(band, (byte)0);
+		}
+		int size = 14 + 12 + height * rowSize;
+		
+		bmpFile = new RandomAccessFile(header.filename, "rw");
+		bmpFile.setLength(size);
+		bmpChannel = bmpFile.getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate(26);
+		putBMPHeader(buffer, width, height, size);
+		buffer.flip();
+		writeFully(buffer, 0);
+	}
+	
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += bmpChannel.write(buffer, position);
+		}
+	}
+	
+	// BMP rows are stored bottom-up, so the rows of a band are reversed into one contiguous write
+	private void writeBand(int bandNum) throws IOException {
+		int firstRow = Math.max(bandNum * bandHeight, offsetY);
+		int rows = Math.min(bandNum * bandHeight + bandHeight, header.height) - firstRow;
+		if (rows <= 0) {
+			return;
+		}
+		writeFully(ByteBuffer.wrap(band, 0, rows * rowSize), 26 + (long)(height - (firstRow - offsetY) - rows) * rowSize);
+	}
+	
+	private void closeBMP() throws IOException {
+		bmpChannel.close();
+		bmpFile.close();
+		bmpChannel = null;
+		bmpFile = null;
+	}
+	
+	private void copyPixelsToBand(int mcuNum) {
+		int curPixelY = (mcuNum / mcuWidth) * blockSize;
+		int curPixelX = (mcuNum % mcuWidth) * blockSize;
+		int firstRow = Math.max(curPixelY - curPixelY % bandHeight, offsetY);
+		int rows = Math.min(curPixelY - curPixelY % bandHeight + bandHeight, header.height) - firstRow;
+		for (int i = Math.max(curPixelY, offsetY); i < curPixelY + blockSize && i < header.height; ++i) {
+			int offset = (rows - 1 - (i - firstRow)) * rowSize;
+			for (int j = Math.max(curPixelX, offsetX); j < curPixelX + blockSize && j < header.width; ++j) {
+				int k = (i - curPixelY) * 8 + (j - curPixelX);
+				band[offset + (j - offsetX) * 3 + 0] = (byte)mcu.cr[k];
+				band[offset + (j - offsetX) * 3 + 1] = (byte)mcu.cb[k];
+				band[offset + (j - offsetX) * 3 + 2] = (byte)mcu.y[k];
+			}
+		}
+	}
+	
 	private void copyPixels(int mcuNum) {
-		int curPixelY = (mcuNum / mcuWidth) * 8;
-		int curPixelX = (mcuNum % mcuWidth) * 8;
-		for (int i = curPixelY; i < curPixelY + 8; ++i) {
-			for (int j = curPixelX; j < curPixelX + 8; ++j) {
-				if (i < header.height && j < header.width) {
-					pixels[i][j * 3 + 0] = mcu.y[(i % 8) * 8 + (j % 8)];
-					pixels[i][j * 3 + 1] = mcu.cb[(i % 8) * 8 + (j % 8)];
-					pixels[i][j * 3 + 2] = mcu.cr[(i % 8) * 8 + (j % 8)];
+		int curPixelY = (mcuNum / mcuWidth) * blockSize;
+		int curPixelX = (mcuNum % mcuWidth) * blockSize;
+		for (int i = curPixelY; i < curPixelY + blockSize; ++i) {
+			for (int j = curPixelX; j < curPixelX + blockSize; ++j) {
+				if (i < header.height && j < header.width && i >= offsetY && j >= offsetX) {
+					int k = (i - curPixelY) * 8 + (j - curPixelX);
+					pixels[i - offsetY][(j - offsetX) * 3 + 0] = mcu.y[k];
+					pixels[i - offsetY][(j - offsetX) * 3 + 1] = mcu.cb[k];
+					pixels[i - offsetY][(j - offsetX) * 3 + 2] = mcu.cr[k];
 				}
 			}
 		}
@@ -149,23 +272,28 @@ public class BMPDumperStage extends PronghornStage {
 				PipeReader.releaseReadLock(input);
 				
 				if (last == 1 && header.height == 0 && header.width == 0) {
-					if (time) {
-						timer += (System.nanoTime() - s);
-						System.out.println("Time for JPGScanner/HuffmanDecoder: " + ((double)(JPGScannerStage.timer.get()) / 1000000) + " ms");
-						System.out.println("Time for InverseQuantizer: " + ((double)(InverseQuantizerStage.timer.get()) / 1000000) + " ms");
-						System.out.println("Time for InverseDCT: " + ((double)(InverseDCTStage.timer.get()) / 1000000) + " ms");
-						System.out.println("Time for YCbCrToRGB: " + ((double)(YCbCrToRGBStage.timer.get()) / 1000000) + " ms");
-						System.out.println("Time for BMPDumper: " + ((double)(timer) / 1000000) + " ms");
-						System.out.println("Total time: " + ((double)(System.nanoTime() - start) / 1000000) + " ms");
-					}
-					
-					System.exit(0);
+					finish(s);
+					continue;
+				}
+				if (persistent && header.height == 0 && header.width == 0) {
+					System.out.println("Error: " + header.filename);
+					continue;
 				}
 
-				pixels = new short[header.height][header.width * 3];
+				offsetX = 0;
+				offsetY = 0;
+				if (region != null) {
+					offsetX = region.x % Region.ALIGNMENT * blockSize / 8;
+					offsetY = region.y % Region.ALIGNMENT * blockSize / 8;
+				}
+				width = header.width - offsetX;
+				height = header.height - offsetY;
+				if (!stream) {
+					pixels = new short[height][width * 3];
+				}
 				count = 0;
-				mcuHeight = mcuHeightReal = (header.height + 7) / 8;
-				mcuWidth = mcuWidthReal = (header.width + 7) / 8;
+				mcuHeight = mcuHeightReal = (header.height + blockSize - 1) / blockSize;
+				mcuWidth = mcuWidthReal = (header.width + blockSize - 1) / blockSize;
 				numMCUs = numMCUsReal = mcuHeight * mcuWidth;
 				pos = 0;
 			}
@@ -191,77 +319,83 @@ public class BMPDumperStage extends PronghornStage {
 					numMCUs = mcuHeight * mcuWidth;
 				}
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
-				}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 
-				if (mcuHeightReal < mcuHeight && pos / mcuWidth == mcuHeightReal ||
-					mcuWidthReal < mcuWidth && pos % mcuWidth == mcuWidthReal) {}
-				else {
-					copyPixels(pos);
-				}
-				
-				count += 1;
-				
-				if (header.colorComponents[0].verticalSamplingFactor == 2 &&
-					mcuHeight > 1) {
-					if (pos % (mcuWidth * 2) == mcuWidth * 2 - 1) {
-						pos += 1;
+				if (stream && count == 0) {
+					try {
+						openBMP();
 					}
-					else if (pos < count) {
-						pos += mcuWidth;
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				for (int k = 0; k < batch.count; ++k) {
+					mcu = batch.mcus[k];
+					if (mcuHeightReal < mcuHeight && pos / mcuWidth == mcuHeightReal ||
+						mcuWidthReal < mcuWidth && pos % mcuWidth == mcuWidthReal) {}
+					else if (stream) {
+						copyPixelsToBand(pos);
 					}
 					else {
-						pos -= mcuWidth - 1;
+						copyPixels(pos);
 					}
-				}
-				else {
-					pos = count;
-				}
 				
-				if (count >= numMCUs) {
-					try {
-						int extension = header.filename.lastIndexOf('.');
-						if (extension == -1) {
-							header.filename += ".bmp";
+					count += 1;
+					
+					// blocks arrive one band at a time, even when MCUs span two block rows
+					if (stream && count % (mcuWidth * header.colorComponents[0].verticalSamplingFactor) == 0) {
+						try {
+							writeBand(count / (mcuWidth * header.colorComponents[0].verticalSamplingFactor) - 1);
 						}
-						else {
-							header.filename = header.filename.substring(0, extension) + ".bmp";
+						catch (IOException e) {
+							throw new RuntimeException(e);
 						}
-						if (verbose) {
-							System.out.println("Writing to '" + header.filename + "'...");
+					}
+				
+					if (header.colorComponents[0].verticalSamplingFactor == 2 &&
+						mcuHeight > 1) {
+						if (pos % (mcuWidth * 2) == mcuWidth * 2 - 1) {
+							pos += 1;
 						}
-						dump(pixels, header.filename);
-						if (verbose) {
-							System.out.println("Done.");
+						else if (pos < count) {
+							pos += mcuWidth;
 						}
-						if (last == 1) {
-							if (time) {
-								timer += (System.nanoTime() - s);
-								System.out.println("Time for JPGScanner/HuffmanDecoder: " + ((double)(JPGScannerStage.timer.get()) / 1000000) + " ms");
-								System.out.println("Time for InverseQuantizer: " + ((double)(InverseQuantizerStage.timer.get()) / 1000000) + " ms");
-								System.out.println("Time for InverseDCT: " + ((double)(InverseDCTStage.timer.get()) / 1000000) + " ms");
-								System.out.println("Time for YCbCrToRGB: " + ((double)(YCbCrToRGBStage.timer.get()) / 1000000) + " ms");
-								System.out.println("Time for BMPDumper: " + ((double)(timer) / 1000000) + " ms");
-								System.out.println("Total time: " + ((double)(System.nanoTime() - start) / 1000000) + " ms");
-							}
-							
-							System.exit(0);
+						else {
+							pos -= mcuWidth - 1;
 						}
 					}
-					catch (IOException e) {
-						throw new RuntimeException(e);
+					else {
+						pos = count;
+					}
+				
+					if (count >= numMCUs) {
+						try {
+							if (stream) {
+								closeBMP();
+							}
+							else {
+								header.filename = bmpFilename(header.filename);
+								if (verbose) {
+									System.out.println("Writing to '" + header.filename + "'...");
+								}
+								dump(pixels, header.filename);
+							}
+							if (verbose) {
+								System.out.println("Done.");
+							}
+							if (persistent) {
+								System.out.println(header.filename);
+							}
+							if (last == 1) {
+								finish(s);
+							}
+						}
+						catch (IOException e) {
+							throw new RuntimeException(e);
+						}
 					}
 				}
 			}
@@ -270,7 +404,32 @@ public class BMPDumperStage extends PronghornStage {
 				requestShutdown();
 			}
 		}
-		timer += (System.nanoTime() - s);
+		timer.addAndGet(System.nanoTime() - s);
+	
+	}
 	
+	// the JVM exits once the last lane has written its last file
+	private void finish(long s) {
+		if (running.decrementAndGet() > 0) {
+			return;
+		}
+		timer.addAndGet(System.nanoTime() - s);
+		if (time) {
+			System.out.println("Time for JPGScanner/HuffmanDecoder: " + ((double)(JPGScannerStage.timer.get()) / 1000000) + " ms");
+			System.out.println("Time for InverseQuantizer: " + ((double)(InverseQuantizerStage.timer.get()) / 1000000) + " ms");
+			System.out.println("Time for InverseDCT: " + ((double)(InverseDCTStage.timer.get()) / 1000000) + " ms");
+			System.out.println("Time for YCbCrToRGB: " + ((double)(YCbCrToRGBStage.timer.get()) / 1000000) + " ms");
+			if (FusedDecoderStage.timer.get() > 0) {
+				System.out.println("Time for FusedDecoder: " + ((double)(FusedDecoderStage.timer.get()) / 1000000) + " ms");
+			}
+			System.out.println("Time for BMPDumper: " + ((double)(timer.get()) / 1000000) + " ms");
+			System.out.println("Total time: " + ((double)(System.nanoTime() - start) / 1000000) + " ms");
+		}
+		
+		System.exit(0);
 	}
+	
+	public static AtomicLong timer = new AtomicLong(0);//NOTE: using statics like this is not recommended
+	// dumpers that have not yet seen their final header, one per lane
+	private static AtomicInteger running = new AtomicInteger(0);
 }
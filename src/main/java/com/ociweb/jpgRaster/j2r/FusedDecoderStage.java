@@ -0,0 +1,341 @@
+package com.ociweb.jpgRaster.j2r;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.jpgRaster.JPG;
+import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
+import com.ociweb.jpgRaster.JPG.ColorComponent;
+import com.ociweb.jpgRaster.JPG.Header;
+import com.ociweb.jpgRaster.JPG.MCU;
+import com.ociweb.jpgRaster.JPG.QuantizationTable;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Does the work of InverseQuantizerStage, InverseDCTStage and YCbCrToRGBStage
+ * in one stage. Each MCU is dequantized, transformed, upsampled and converted
+ * to RGB while it is still in cache, and only the finished pixels are written
+ * to the output pipe for BMPDumperStage.
+ */
+public class FusedDecoderStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(FusedDecoderStage.class);
+
+	private final Pipe<JPGSchema> input;
+	private final Pipe<JPGSchema> output;
+	boolean verbose;
+	boolean integerIDCT;
+	boolean floatColor;
+	int blockSize;
+
+	private Header header;
+	private MCUBatch inBatch;
+	private MCUBatch outBatch;
+	private MCU mcu1;
+	private MCU mcu2;
+	private MCU mcu3;
+	private MCU mcu4;
+	private short[] tempCB;
+	private short[] tempCR;
+	private double[] temp;
+	private int[] workspace;
+	private int count = 0;
+
+	// quantization tables of the y, cb and cr components in natural order
+	private int[][] tables;
+	private boolean tablesReady = false;
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ Input JPG schema, as written by JPGScannerStage
+	 * @param output _out_ Output JPG schema holding RGB pixels
+	 * @param verbose
+	 * @param integerIDCT use the scaled integer IntegerIDCT instead of the double precision transform
+	 * @param floatColor use the floating point color conversion instead of the lookup tables
+	 */
+	public FusedDecoderStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean integerIDCT, boolean floatColor) {
+		this(graphManager, input, output, verbose, integerIDCT, floatColor, 8);
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ Input JPG schema, as written by JPGScannerStage
+	 * @param output _out_ Output JPG schema holding RGB pixels
+	 * @param verbose
+	 * @param integerIDCT use the scaled integer IntegerIDCT instead of the double precision transform
+	 * @param floatColor use the floating point color conversion instead of the lookup tables
+	 * @param blockSize 8 for full size images, 4 or 2 for 1/2 and 1/4 scale images, or 1 for previews made from the DC values
+	 */
+	public FusedDecoderStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean integerIDCT, boolean floatColor, int blockSize) {
+		super(graphManager, input, output);
+		this.input = input;
+		this.output = output;
+		this.verbose = verbose;
+		this.integerIDCT = integerIDCT;
+		this.floatColor = floatColor;
+		this.blockSize = blockSize;
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		inBatch = new MCUBatch(input, blockSize);
+		outBatch = new MCUBatch(output, blockSize);
+		mcu1 = new MCU();
+		mcu2 = new MCU();
+		mcu3 = new MCU();
+		mcu4 = new MCU();
+		tempCB = new short[64];
+		tempCR = new short[64];
+		temp = new double[64];
+		workspace = new int[64];
+		tables = new int[3][64];
+	}
+
+	private void prepareTables() {
+		for (int c = 0; c < header.numComponents; ++c) {
+			QuantizationTable table = header.quantizationTables[header.colorComponents[c].quantizationTableID];
+			for (int i = 0; i < 64; ++i) {
+				tables[c][JPG.zigZagMap[i]] = table.table[i];
+			}
+		}
+		tablesReady = true;
+	}
+
+	private void transform(short[] block, int component) {
+		if (blockSize < 8) {
+			int[] table = tables[component];
+			for (int i = 0; i < blockSize * 8; i += 8) {
+				for (int j = i; j < i + blockSize; ++j) {
+					block[j] = (short)(block[j] * table[j]);
+				}
+			}
+			InverseDCTStage.TransformBlock(block, temp, blockSize);
+		}
+		else if (integerIDCT) {
+			// dequantization is folded into loading the coefficients
+			IntegerIDCT.transformBlock(block, tables[component], workspace);
+		}
+		else {
+			int[] table = tables[component];
+			for (int i = 0; i < 64; ++i) {
+				block[i] = (short)(block[i] * table[i]);
+			}
+			InverseDCTStage.TransformBlock(block, temp);
+		}
+	}
+
+	// chroma of a subsampled MCU only comes with its first block
+	private void transform(MCU mcu, boolean chroma) {
+		transform(mcu.y, 0);
+		if (chroma && header.numComponents > 1) {
+			transform(mcu.cb, 1);
+			transform(mcu.cr, 2);
+		}
+	}
+
+	@Override
+	public void run() {
+		long s = System.nanoTime();
+		while (PipeWriter.hasRoomForWrite(output) && PipeReader.tryReadFragment(input)) {
+
+			int msgIdx = PipeReader.getMsgIdx(input);
+
+			if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+				// read header from pipe
+				header = new Header();
+				header.height = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101);
+				header.width = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201);
+				header.filename = PipeReader.readASCII(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, new StringBuilder()).toString();
+				int last = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401);
+				PipeReader.releaseReadLock(input);
+				tablesReady = false;
+				count = 0;
+
+				// write header to pipe
+				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_HEADERMESSAGE_1)) {
+					if (verbose) {
+						System.out.println("Fused Decoder writing header to pipe...");
+					}
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, header.height);
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, header.width);
+					PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, header.filename);
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, last);
+					PipeWriter.publishWrites(output);
+				}
+				else {
+					logger.error("Fused Decoder requesting shutdown");
+					requestShutdown();
+				}
+			}
+			else if (msgIdx == JPGSchema.MSG_COLORCOMPONENTMESSAGE_2) {
+				// read color component data from pipe
+				ColorComponent component = new ColorComponent();
+				component.componentID = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_COMPONENTID_102);
+				component.horizontalSamplingFactor = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_HORIZONTALSAMPLINGFACTOR_202);
+				component.verticalSamplingFactor = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_VERTICALSAMPLINGFACTOR_302);
+				component.quantizationTableID = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_QUANTIZATIONTABLEID_402);
+				header.colorComponents[component.componentID - 1] = component;
+				header.numComponents += 1;
+				PipeReader.releaseReadLock(input);
+
+				// write color component data to pipe
+				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2)) {
+					if (verbose) {
+						System.out.println("Fused Decoder writing color component to pipe...");
+					}
+					PipeWriter.writeInt(output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_COMPONENTID_102, component.componentID);
+					PipeWriter.writeInt(output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_HORIZONTALSAMPLINGFACTOR_202, component.horizontalSamplingFactor);
+					PipeWriter.writeInt(output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_VERTICALSAMPLINGFACTOR_302, component.verticalSamplingFactor);
+					PipeWriter.writeInt(output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_QUANTIZATIONTABLEID_402, component.quantizationTableID);
+					PipeWriter.publishWrites(output);
+				}
+				else {
+					logger.error("Fused Decoder requesting shutdown");
+					requestShutdown();
+				}
+			}
+			else if (msgIdx == JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3) {
+				// read quantization table from pipe
+				QuantizationTable table = new QuantizationTable();
+				table.tableID = (short) PipeReader.readInt(input, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_TABLEID_103);
+				table.precision = (short) PipeReader.readInt(input, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_PRECISION_203);
+
+				DataInputBlobReader<JPGSchema> r = PipeReader.inputStream(input, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_TABLE_303);
+				for (int i = 0; i < 64; ++i) {
+					table.table[i] = r.readInt();
+				}
+
+				PipeReader.releaseReadLock(input);
+
+				// same workaround as InverseQuantizerStage, tableID always reads as 0
+				int i = 0;
+				while (header.quantizationTables[i] != null) {
+					i += 1;
+				}
+				header.quantizationTables[i] = table;
+			}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				inBatch.read(input, msgIdx);
+				PipeReader.releaseReadLock(input);
+
+				if (!tablesReady) {
+					prepareTables();
+				}
+
+				int horizontal = header.colorComponents[0].horizontalSamplingFactor;
+				int vertical = header.colorComponents[0].verticalSamplingFactor;
+				for (int k = 0; k < inBatch.count; ++k) {
+					MCU mcu = inBatch.mcus[k];
+					// same block order as YCbCrToRGBStage
+					if (count == 0) {
+						transform(mcu, true);
+						MCUBatch.copy(mcu, mcu1, blockSize);
+						count = 1;
+						if (horizontal == 1 && vertical == 2) {
+							count = 5;
+						}
+					}
+					else if (count == 1) {
+						transform(mcu, false);
+						MCUBatch.copy(mcu, mcu2, blockSize);
+						count = 2;
+						if (vertical == 2) {
+							count = 5;
+						}
+					}
+					else if (count == 5) {
+						transform(mcu, false);
+						MCUBatch.copy(mcu, mcu3, blockSize);
+						count = 2;
+						if (horizontal == 2) {
+							count = 3;
+						}
+					}
+					else if (count == 3) {
+						transform(mcu, false);
+						MCUBatch.copy(mcu, mcu4, blockSize);
+						count = 4;
+					}
+
+					if (count == horizontal * vertical) {
+						if (outBatch.count + count > outBatch.capacity() && !outBatch.write(output)) {
+							logger.error("Fused Decoder requesting shutdown");
+							requestShutdown();
+						}
+						if (horizontal == 2 && vertical == 2) {
+							if (blockSize < 8) {
+								YCbCrToRGBStage.expandScaled(mcu1, mcu3, mcu2, mcu4, blockSize, tempCB, tempCR);
+							}
+							else {
+								YCbCrToRGBStage.expandColumnsAndRows(mcu1, mcu2, mcu3, mcu4, tempCB, tempCR);
+							}
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu2, floatColor, blockSize);
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu3, floatColor, blockSize);
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu4, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu2);
+							outBatch.add(mcu3);
+							outBatch.add(mcu4);
+						}
+						else if (horizontal == 2) {
+							if (blockSize < 8) {
+								YCbCrToRGBStage.expandScaled(mcu1, mcu2, null, null, blockSize, tempCB, tempCR);
+							}
+							else {
+								YCbCrToRGBStage.expandColumns(mcu1, mcu2, tempCB, tempCR);
+							}
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu2, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu2);
+						}
+						else if (vertical == 2) {
+							if (blockSize < 8) {
+								YCbCrToRGBStage.expandScaled(mcu1, null, mcu3, null, blockSize, tempCB, tempCR);
+							}
+							else {
+								YCbCrToRGBStage.expandRows(mcu1, mcu3, tempCB, tempCR);
+							}
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu3, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu3);
+						}
+						else {
+							YCbCrToRGBStage.convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							outBatch.add(mcu1);
+						}
+
+						count = 0;
+					}
+				}
+
+				if (outBatch.count > 0 && !outBatch.write(output)) {
+					logger.error("Fused Decoder requesting shutdown");
+					requestShutdown();
+				}
+			}
+			else {
+				logger.error("Fused Decoder requesting shutdown");
+				requestShutdown();
+			}
+		}
+		timer.addAndGet(System.nanoTime() - s);
+	}
+
+	public static AtomicLong timer = new AtomicLong(0);//NOTE: using statics like this is not recommended
+
+}
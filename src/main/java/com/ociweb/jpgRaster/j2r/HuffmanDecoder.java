@@ -1,10 +1,12 @@
 package com.ociweb.jpgRaster.j2r;
 
 import com.ociweb.jpgRaster.JPG;
+import com.ociweb.jpgRaster.JPGConstants;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPG.HuffmanTable;
 import com.ociweb.jpgRaster.JPG.MCU;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.slf4j.Logger;
@@ -14,66 +16,189 @@ public class HuffmanDecoder {
 
 	private static final Logger logger = LoggerFactory.getLogger(HuffmanDecoder.class);
 	
+	/**
+	 * Reads bits from the entropy-coded segment of a scan.
+	 * Bits are kept in a 64-bit accumulator that is refilled several bytes
+	 * at a time straight from the file data. Byte stuffing (0xFF00) and
+	 * RSTn markers are removed during refill, so the decoder only ever
+	 * sees the coded bits. Past the end of the data, the accumulator is
+	 * padded with zeroes that are not counted as available bits.
+	 */
 	private static class BitReader {
+		private final ByteBuffer data;
+		private final int limit;
 		private int nextByte = 0;
-		private int nextBit = 0;
-		private ArrayList<Short> data;
+		private long bitBuffer = 0;
+		private int bitCount = 0;
+		private int paddingBits = 0;
 		
-		public BitReader(ArrayList<Short> d) {
+		public BitReader(ByteBuffer d) {
 			data = d;
+			limit = d.limit();
+		}
+		
+		private void refill() {
+			while (bitCount <= 56) {
+				int current = 0;
+				if (nextByte < limit) {
+					current = data.get(nextByte++) & 0xFF;
+					if (current == 0xFF) {
+						int next = nextByte < limit ? data.get(nextByte) & 0xFF : -1;
+						if (next == 0x00) {
+							// stuffed byte, drop the 0x00
+							nextByte += 1;
+						}
+						else if (next >= JPGConstants.RST0 && next <= JPGConstants.RST7) {
+							// RSTn carries no data
+							nextByte += 1;
+							continue;
+						}
+						else if (next == 0xFF) {
+							// fill byte preceding a marker
+							continue;
+						}
+						else {
+							// any other marker ends the coded data
+							nextByte = limit;
+							paddingBits += 8;
+							current = 0;
+						}
+					}
+				}
+				else {
+					paddingBits += 8;
+				}
+				bitBuffer = (bitBuffer << 8) | current;
+				bitCount += 8;
+			}
+		}
+		
+		private int availableBits() {
+			return bitCount - paddingBits;
 		}
 		
 		public int nextBit() {
-			if (nextByte >= data.size()) {
-				return -1;
+			if (bitCount < 1) {
+				refill();
 			}
-			int bit = (data.get(nextByte) >> (7 - nextBit)) & 1;
-			nextBit += 1;
-			if (nextBit == 8) {
-				nextBit = 0;
-				nextByte += 1;
+			if (availableBits() < 1) {
+				return -1;
 			}
-			return bit;
+			bitCount -= 1;
+			return (int)(bitBuffer >>> bitCount) & 1;
 		}
 		
 		public int nextBits(int length) {
-			int bits = 0;
-			for (int i = 0; i < length; ++i) {
-				int bit = nextBit();
-				if (bit == -1) {
-					bits = -1;
-					break;
-				}
-				else {
-					bits = (bits << 1) | bit;
-				}
+			if (length == 0) {
+				return 0;
+			}
+			if (bitCount < length) {
+				refill();
 			}
-			return bits;
+			if (availableBits() < length) {
+				// consume whatever is left
+				bitCount = paddingBits;
+				return -1;
+			}
+			bitCount -= length;
+			return (int)(bitBuffer >>> bitCount) & ((1 << length) - 1);
+		}
+		
+		// returns the next length bits without consuming them,
+		// padding with zeroes past the end of the data
+		public int peekBits(int length) {
+			if (bitCount < length) {
+				refill();
+			}
+			return (int)(bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+		}
+		
+		// returns false if fewer than length bits were left
+		public boolean skipBits(int length) {
+			if (bitCount < length) {
+				refill();
+			}
+			boolean enough = length <= availableBits();
+			bitCount -= length;
+			if (bitCount < paddingBits) {
+				bitCount = paddingBits;
+			}
+			return enough;
 		}
 		
 		public boolean hasBits() {
-			if (nextByte >= data.size()) {
-				return false;
+			if (bitCount < 8) {
+				refill();
 			}
-			return true;
+			return availableBits() > 0;
 		}
 		
 		public void align() {
-			if (nextByte >= data.size()) {
-				return;
+			// drop the rest of the current byte
+			bitCount -= bitCount % 8;
+		}
+	}
+	
+	// number of bits resolved by a single lookup;
+	// longer codes fall back to the maxcode/valptr search
+	private static final int LOOKAHEAD_BITS = 9;
+	
+	/**
+	 * Precomputed decoding tables for one DHT table.
+	 * Codes of up to LOOKAHEAD_BITS bits are resolved with one array access
+	 * into lookup, which holds (code length << 8) | symbol, or 0 if the code
+	 * is longer than the lookahead. Longer codes are resolved the same way
+	 * as libjpeg does, one bit at a time against maxcode.
+	 */
+	private static class LookupTable {
+		private final int[] lookup = new int[1 << LOOKAHEAD_BITS];
+		private final int[] maxcode = new int[18];
+		private final int[] valptr = new int[17];
+		private final int[] mincode = new int[17];
+		private final short[] huffval;
+		
+		public LookupTable(HuffmanTable table) {
+			int numSymbols = 0;
+			for (int i = 0; i < 16; ++i) {
+				numSymbols += table.symbols.get(i).size();
 			}
-			if (nextBit != 0) {
-				nextBit = 0;
-				nextByte += 1;
+			huffval = new short[numSymbols];
+			
+			int code = 0;
+			int pos = 0;
+			for (int length = 1; length <= 16; ++length) {
+				ArrayList<Short> symbols = table.symbols.get(length - 1);
+				if (symbols.isEmpty()) {
+					maxcode[length] = -1;
+				}
+				else {
+					valptr[length] = pos;
+					mincode[length] = code;
+					for (int j = 0; j < symbols.size(); ++j, ++pos, ++code) {
+						huffval[pos] = symbols.get(j);
+						if (length <= LOOKAHEAD_BITS) {
+							// every lookahead value starting with this code maps to it
+							int shift = LOOKAHEAD_BITS - length;
+							int entry = (length << 8) | (huffval[pos] & 0xFF);
+							for (int k = 0; k < (1 << shift); ++k) {
+								lookup[(code << shift) | k] = entry;
+							}
+						}
+					}
+					maxcode[length] = code - 1;
+				}
+				code <<= 1;
 			}
+			// sentinel so that the search always terminates
+			maxcode[17] = Integer.MAX_VALUE;
 		}
 	}
 	
 	Header header;
 	boolean progressive;
 	BitReader b;
-	ArrayList<ArrayList<ArrayList<Integer>>> DCTableCodes;
-	ArrayList<ArrayList<ArrayList<Integer>>> ACTableCodes;
+	LookupTable[] DCLookupTables = new LookupTable[4];
+	LookupTable[] ACLookupTables = new LookupTable[4];
 
 	short yDCTableID;
 	short yACTableID;
@@ -88,6 +213,22 @@ public class HuffmanDecoder {
 	
 	int skips;
 	
+	// only the DC coefficients are kept, the AC ones are parsed past
+	final boolean dcOnly;
+	// set while an MCU outside of a decoded region is parsed past
+	private boolean skipping = false;
+	
+	public HuffmanDecoder() {
+		this(false);
+	}
+	
+	/**
+	 * @param dcOnly leave every AC coefficient unset, for previews built from the DC values alone
+	 */
+	public HuffmanDecoder(boolean dcOnly) {
+		this.dcOnly = dcOnly;
+	}
+	
 	public static ArrayList<ArrayList<Integer>> generateCodes(HuffmanTable table){
 		ArrayList<ArrayList<Integer>> codes = new ArrayList<ArrayList<Integer>>(16);
 		for (int i = 0; i < 16; ++i) {
@@ -105,24 +246,68 @@ public class HuffmanDecoder {
 		return codes;
 	}
 	
-	private short getNextSymbol(ArrayList<ArrayList<Integer>> codes,
-									   ArrayList<ArrayList<Short>> symbols) {
-		int currentCode = b.nextBit();
-		for (int i = 0; i < 16; ++i) {
-			for (int j = 0; j < codes.get(i).size(); ++j) {
-				if (currentCode == codes.get(i).get(j)) {
-					return symbols.get(i).get(j);
+	private short getNextSymbol(LookupTable table) {
+		int look = b.peekBits(LOOKAHEAD_BITS);
+		int entry = table.lookup[look];
+		if (entry != 0) {
+			if (!b.skipBits(entry >> 8)) {
+				return -1;
+			}
+			return (short)(entry & 0xFF);
+		}
+		
+		// code is longer than the lookahead
+		int length = LOOKAHEAD_BITS + 1;
+		int code = b.nextBits(length);
+		if (code == -1) {
+			return -1;
+		}
+		while (code > table.maxcode[length]) {
+			int bit = b.nextBit();
+			if (bit == -1) {
+				return -1;
+			}
+			code = (code << 1) | bit;
+			++length;
+		}
+		if (length > 16) {
+			return -1;
+		}
+		return table.huffval[table.valptr[length] + code - table.mincode[length]];
+	}
+	
+	// parses past the AC values of a block without storing them
+	private boolean skipACValues(LookupTable ACTable) {
+		for (int k = 1; k <= 63; ++k) {
+			int entry = ACTable.lookup[b.peekBits(LOOKAHEAD_BITS)];
+			int symbol;
+			if (entry != 0) {
+				// the code and the value bits that follow it are skipped together
+				symbol = entry & 0xFF;
+				if (!b.skipBits((entry >> 8) + (symbol & 0x0F))) {
+					return true;
+				}
+			}
+			else {
+				symbol = getNextSymbol(ACTable);
+				if (symbol == -1) {
+					logger.error("Error - Invalid AC Value");
+					return false;
 				}
+				if (!b.skipBits(symbol & 0x0F)) {
+					return true;
+				}
+			}
+			if (symbol == 0) {
+				return true;
 			}
-			currentCode = (currentCode << 1) | b.nextBit();
+			k += symbol >> 4;
 		}
-		return -1;
+		return true;
 	}
 	
-	private boolean decodeMCUComponent(ArrayList<ArrayList<Integer>> DCTableCodes,
-											  ArrayList<ArrayList<Integer>> ACTableCodes,
-											  HuffmanTable DCTable,
-											  HuffmanTable ACTable,
+	private boolean decodeMCUComponent(LookupTable DCTable,
+											  LookupTable ACTable,
 											  short[] component,
 											  short previousDC,
 											  Header header) {
@@ -159,7 +344,7 @@ public class HuffmanDecoder {
 			
 			if (header.startOfSelection == 0 && header.successiveApproximationHigh == 0) {
 				// DC first visit
-				short length = getNextSymbol(DCTableCodes, DCTable.symbols);
+				short length = getNextSymbol(DCTable);
 				if (length == -1) {
 					logger.error("Error - Invalid DC Value");
 					return false;
@@ -185,7 +370,7 @@ public class HuffmanDecoder {
 					return true;
 				}
 				for (int k = header.startOfSelection; k <= header.endOfSelection; ++k) {
-					short symbol = getNextSymbol(ACTableCodes, ACTable.symbols);
+					short symbol = getNextSymbol(ACTable);
 
 					short numZeroes = (short)((symbol & 0xF0) >> 4);
 					short coeffLength = (short)(symbol & 0x0F);
@@ -241,7 +426,7 @@ public class HuffmanDecoder {
 				int k = header.startOfSelection;
 				if (skips == 0) {
 					for (; k <= header.endOfSelection; ++k) {
-						short symbol = getNextSymbol(ACTableCodes, ACTable.symbols);
+						short symbol = getNextSymbol(ACTable);
 						if (symbol == -1) {
 							logger.error("Error - Invalid AC Value");
 							return false;
@@ -314,7 +499,7 @@ public class HuffmanDecoder {
 		else {
 			// baseline decoding
 			// get the DC value for this MCU
-			short length = getNextSymbol(DCTableCodes, DCTable.symbols);
+			short length = getNextSymbol(DCTable);
 			if (length == -1) {
 				logger.error("Error - Invalid DC Value");
 				return false;
@@ -330,9 +515,13 @@ public class HuffmanDecoder {
 			component[0] += previousDC;
 			//System.out.println("DC Value: " + component[0]);
 			
+			if (dcOnly || skipping) {
+				return skipACValues(ACTable);
+			}
+			
 			// get the AC values for this MCU
 			for (int k = 1; k <= 63; ++k) {
-				short symbol = getNextSymbol(ACTableCodes, ACTable.symbols);
+				short symbol = getNextSymbol(ACTable);
 				if (symbol == -1) {
 					logger.error("Error - Invalid AC Value");
 					return false;
@@ -389,46 +578,36 @@ public class HuffmanDecoder {
 		int horizontal = header.colorComponents[0].horizontalSamplingFactor;
 		int vertical = header.colorComponents[0].verticalSamplingFactor;
 		
-		ArrayList<ArrayList<Integer>> dcTableCodes;
-		ArrayList<ArrayList<Integer>> acTableCodes;
-		HuffmanTable dcTable;
-		HuffmanTable acTable;
+		LookupTable dcTable;
+		LookupTable acTable;
 		boolean success;
 		
 		if (header.colorComponents[0].used) {
 			//System.out.println("Decoding Y Component...");
-			dcTableCodes = null;
-			if (yDCTableID < DCTableCodes.size()) {
-				dcTableCodes = DCTableCodes.get(yDCTableID);
-			}
-			acTableCodes = null;
-			if (yACTableID < ACTableCodes.size()) {
-				acTableCodes = ACTableCodes.get(yACTableID);
-			}
-			dcTable = header.huffmanDCTables[yDCTableID];
-			acTable = header.huffmanACTables[yACTableID];
-			success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu1.y, previousYDC, header);
+			dcTable = DCLookupTables[yDCTableID];
+			acTable = ACLookupTables[yACTableID];
+			success = decodeMCUComponent(dcTable, acTable, mcu1.y, previousYDC, header);
 			if (!success) {
 				return false;
 			}
 			previousYDC = (short) (mcu1.y[0] >> header.successiveApproximationLow);
 			
 			if (horizontal == 2 && (header.colorComponents[1].used || header.colorComponents[2].used)) {
-				success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu2.y, previousYDC, header);
+				success = decodeMCUComponent(dcTable, acTable, mcu2.y, previousYDC, header);
 				if (!success) {
 					return false;
 				}
 				previousYDC = (short) (mcu2.y[0] >> header.successiveApproximationLow);
 			}
 			if (vertical == 2 && (header.colorComponents[1].used || header.colorComponents[2].used)) {
-				success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu3.y, previousYDC, header);
+				success = decodeMCUComponent(dcTable, acTable, mcu3.y, previousYDC, header);
 				if (!success) {
 					return false;
 				}
 				previousYDC = (short) (mcu3.y[0] >> header.successiveApproximationLow);
 			}
 			if (horizontal == 2 && vertical == 2 && (header.colorComponents[1].used || header.colorComponents[2].used)) {
-				success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu4.y, previousYDC, header);
+				success = decodeMCUComponent(dcTable, acTable, mcu4.y, previousYDC, header);
 				if (!success) {
 					return false;
 				}
@@ -439,17 +618,9 @@ public class HuffmanDecoder {
 		if (header.numComponents > 1) {
 			if (header.colorComponents[1].used) {
 				//System.out.println("Decoding Cb Component...");
-				dcTableCodes = null;
-				if (cbDCTableID < DCTableCodes.size()) {
-					dcTableCodes = DCTableCodes.get(cbDCTableID);
-				}
-				acTableCodes = null;
-				if (cbACTableID < ACTableCodes.size()) {
-					acTableCodes = ACTableCodes.get(cbACTableID);
-				}
-				dcTable = header.huffmanDCTables[cbDCTableID];
-				acTable = header.huffmanACTables[cbACTableID];
-				success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu1.cb, previousCbDC, header);
+				dcTable = DCLookupTables[cbDCTableID];
+				acTable = ACLookupTables[cbACTableID];
+				success = decodeMCUComponent(dcTable, acTable, mcu1.cb, previousCbDC, header);
 				if (!success) {
 					return false;
 				}
@@ -458,17 +629,9 @@ public class HuffmanDecoder {
 
 			if (header.colorComponents[2].used) {
 				//System.out.println("Decoding Cr Component...");
-				dcTableCodes = null;
-				if (crDCTableID < DCTableCodes.size()) {
-					dcTableCodes = DCTableCodes.get(crDCTableID);
-				}
-				acTableCodes = null;
-				if (crACTableID < ACTableCodes.size()) {
-					acTableCodes = ACTableCodes.get(crACTableID);
-				}
-				dcTable = header.huffmanDCTables[crDCTableID];
-				acTable = header.huffmanACTables[crACTableID];
-				success = decodeMCUComponent(dcTableCodes, acTableCodes, dcTable, acTable, mcu1.cr, previousCrDC, header);
+				dcTable = DCLookupTables[crDCTableID];
+				acTable = ACLookupTables[crACTableID];
+				success = decodeMCUComponent(dcTable, acTable, mcu1.cr, previousCrDC, header);
 				if (!success) {
 					return false;
 				}
@@ -479,27 +642,41 @@ public class HuffmanDecoder {
 		return true;
 	}
 	
+	/**
+	 * Parses past an MCU that will not be used, keeping only what the MCUs after it depend on:
+	 * the DC values of sequential scans, which are predicted from the previous block.
+	 */
+	public boolean skipHuffmanData(MCU mcu1, MCU mcu2, MCU mcu3, MCU mcu4) {
+		skipping = true;
+		boolean success = decodeHuffmanData(mcu1, mcu2, mcu3, mcu4);
+		skipping = false;
+		return success;
+	}
+	
 	public void beginDecode(Header h) {
+		beginDecode(h, h.imageData);
+	}
+	
+	// begin decoding the given part of the scan, such as a single restart interval
+	public void beginDecode(Header h, ByteBuffer data) {
 		header = h;
 		progressive = header.frameType.equals("Progressive");
-		b = new BitReader(header.imageData);
+		b = new BitReader(data);
 		
-		DCTableCodes = new ArrayList<ArrayList<ArrayList<Integer>>>(2);
-		ACTableCodes = new ArrayList<ArrayList<ArrayList<Integer>>>(2);
 		for (int i = 0; i < header.huffmanDCTables.length; ++i) {
 			if (header.huffmanDCTables[i] != null) {
-				DCTableCodes.add(generateCodes(header.huffmanDCTables[i]));
+				DCLookupTables[i] = new LookupTable(header.huffmanDCTables[i]);
 			}
 			else {
-				DCTableCodes.add(null);
+				DCLookupTables[i] = null;
 			}
 		}
 		for (int i = 0; i < header.huffmanACTables.length; ++i) {
 			if (header.huffmanACTables[i] != null) {
-				ACTableCodes.add(generateCodes(header.huffmanACTables[i]));
+				ACLookupTables[i] = new LookupTable(header.huffmanACTables[i]);
 			}
 			else {
-				ACTableCodes.add(null);
+				ACLookupTables[i] = null;
 			}
 		}
 
@@ -525,4 +702,12 @@ public class HuffmanDecoder {
 		previousCrDC = 0;
 		b.align();
 	}
+	
+	// continue with the next restart interval, held in its own buffer
+	public void restart(ByteBuffer data) {
+		previousYDC = 0;
+		previousCbDC = 0;
+		previousCrDC = 0;
+		b = new BitReader(data);
+	}
 }
@@ -0,0 +1,198 @@
+package com.ociweb.jpgRaster.j2r;
+
+/*
+ * Scaled integer inverse DCT using the Loeffler, Ligtenberg and Moschytz
+ * butterfly (12 multiplies per 1-D pass). This follows the layout of the
+ * IJG jidctint.c "islow" implementation, found here:
+ * <a href="https://github.com/libjpeg-turbo/libjpeg-turbo/blob/main/src/jidctint.c">jidctint.c</a>
+ *
+ * Unlike jidctint.c, the output is not level shifted or range limited, and the
+ * final descale truncates toward zero, so the results stay within 1 of the
+ * double precision transform in InverseDCTStage.
+ */
+public class IntegerIDCT {
+
+	private static final int CONST_BITS = 13;
+	private static final int PASS1_BITS = 2;
+
+	// cosine constants scaled by 2^CONST_BITS
+	private static final int FIX_0_298631336 = 2446;
+	private static final int FIX_0_390180644 = 3196;
+	private static final int FIX_0_541196100 = 4433;
+	private static final int FIX_0_765366865 = 6270;
+	private static final int FIX_0_899976223 = 7373;
+	private static final int FIX_1_175875602 = 9633;
+	private static final int FIX_1_501321110 = 12299;
+	private static final int FIX_1_847759065 = 15137;
+	private static final int FIX_1_961570560 = 16069;
+	private static final int FIX_2_053119869 = 16819;
+	private static final int FIX_2_562915447 = 20995;
+	private static final int FIX_3_072711026 = 25172;
+
+	private static final int[] unitTable = new int[64];
+	static {
+		for (int i = 0; i < 64; ++i) {
+			unitTable[i] = 1;
+		}
+	}
+
+	private static int descale(int x, int n) {
+		return (x + (1 << (n - 1))) >> n;
+	}
+
+	private static short truncate(int x, int n) {
+		return (short) (x >= 0 ? x >> n : -((-x) >> n));
+	}
+
+	/**
+	 * Transforms one 8x8 block of dequantized coefficients in place.
+	 * @param block coefficients in natural (not zig zag) order
+	 * @param workspace scratch space of at least 64 ints
+	 */
+	public static void transformBlock(short[] block, int[] workspace) {
+		transformBlock(block, unitTable, workspace);
+	}
+
+	/**
+	 * Dequantizes and transforms one 8x8 block of quantized coefficients in place.
+	 * Each coefficient is multiplied by its quantization value as it is loaded,
+	 * so no separate dequantization pass is needed.
+	 * @param block coefficients in natural (not zig zag) order
+	 * @param table quantization values in natural (not zig zag) order
+	 * @param workspace scratch space of at least 64 ints
+	 */
+	public static void transformBlock(short[] block, int[] table, int[] workspace) {
+		int tmp0, tmp1, tmp2, tmp3;
+		int tmp10, tmp11, tmp12, tmp13;
+		int z1, z2, z3, z4, z5;
+
+		// pass 1: columns from block into workspace, scaled up by 2^PASS1_BITS
+		for (int col = 0; col < 8; ++col) {
+			if (block[8 + col] == 0 && block[16 + col] == 0 && block[24 + col] == 0 &&
+				block[32 + col] == 0 && block[40 + col] == 0 && block[48 + col] == 0 &&
+				block[56 + col] == 0) {
+				// AC terms all zero, the column is flat
+				int dcval = (block[col] * table[col]) << PASS1_BITS;
+				for (int row = 0; row < 64; row += 8) {
+					workspace[row + col] = dcval;
+				}
+				continue;
+			}
+
+			// even part
+			z2 = block[16 + col] * table[16 + col];
+			z3 = block[48 + col] * table[48 + col];
+			z1 = (z2 + z3) * FIX_0_541196100;
+			tmp2 = z1 - z3 * FIX_1_847759065;
+			tmp3 = z1 + z2 * FIX_0_765366865;
+
+			z2 = block[col] * table[col];
+			z3 = block[32 + col] * table[32 + col];
+			tmp0 = (z2 + z3) << CONST_BITS;
+			tmp1 = (z2 - z3) << CONST_BITS;
+
+			tmp10 = tmp0 + tmp3;
+			tmp13 = tmp0 - tmp3;
+			tmp11 = tmp1 + tmp2;
+			tmp12 = tmp1 - tmp2;
+
+			// odd part
+			tmp0 = block[56 + col] * table[56 + col];
+			tmp1 = block[40 + col] * table[40 + col];
+			tmp2 = block[24 + col] * table[24 + col];
+			tmp3 = block[8 + col] * table[8 + col];
+
+			z1 = tmp0 + tmp3;
+			z2 = tmp1 + tmp2;
+			z3 = tmp0 + tmp2;
+			z4 = tmp1 + tmp3;
+			z5 = (z3 + z4) * FIX_1_175875602;
+
+			tmp0 *= FIX_0_298631336;
+			tmp1 *= FIX_2_053119869;
+			tmp2 *= FIX_3_072711026;
+			tmp3 *= FIX_1_501321110;
+			z1 *= -FIX_0_899976223;
+			z2 *= -FIX_2_562915447;
+			z3 = z3 * -FIX_1_961570560 + z5;
+			z4 = z4 * -FIX_0_390180644 + z5;
+
+			tmp0 += z1 + z3;
+			tmp1 += z2 + z4;
+			tmp2 += z2 + z3;
+			tmp3 += z1 + z4;
+
+			workspace[col]      = descale(tmp10 + tmp3, CONST_BITS - PASS1_BITS);
+			workspace[56 + col] = descale(tmp10 - tmp3, CONST_BITS - PASS1_BITS);
+			workspace[8 + col]  = descale(tmp11 + tmp2, CONST_BITS - PASS1_BITS);
+			workspace[48 + col] = descale(tmp11 - tmp2, CONST_BITS - PASS1_BITS);
+			workspace[16 + col] = descale(tmp12 + tmp1, CONST_BITS - PASS1_BITS);
+			workspace[40 + col] = descale(tmp12 - tmp1, CONST_BITS - PASS1_BITS);
+			workspace[24 + col] = descale(tmp13 + tmp0, CONST_BITS - PASS1_BITS);
+			workspace[32 + col] = descale(tmp13 - tmp0, CONST_BITS - PASS1_BITS);
+		}
+
+		// pass 2: rows from workspace back into block, removing PASS1_BITS and the factor of 8
+		for (int row = 0; row < 64; row += 8) {
+			if (workspace[row + 1] == 0 && workspace[row + 2] == 0 && workspace[row + 3] == 0 &&
+				workspace[row + 4] == 0 && workspace[row + 5] == 0 && workspace[row + 6] == 0 &&
+				workspace[row + 7] == 0) {
+				short dcval = truncate(workspace[row], PASS1_BITS + 3);
+				for (int col = 0; col < 8; ++col) {
+					block[row + col] = dcval;
+				}
+				continue;
+			}
+
+			// even part
+			z2 = workspace[row + 2];
+			z3 = workspace[row + 6];
+			z1 = (z2 + z3) * FIX_0_541196100;
+			tmp2 = z1 - z3 * FIX_1_847759065;
+			tmp3 = z1 + z2 * FIX_0_765366865;
+
+			tmp0 = (workspace[row] + workspace[row + 4]) << CONST_BITS;
+			tmp1 = (workspace[row] - workspace[row + 4]) << CONST_BITS;
+
+			tmp10 = tmp0 + tmp3;
+			tmp13 = tmp0 - tmp3;
+			tmp11 = tmp1 + tmp2;
+			tmp12 = tmp1 - tmp2;
+
+			// odd part
+			tmp0 = workspace[row + 7];
+			tmp1 = workspace[row + 5];
+			tmp2 = workspace[row + 3];
+			tmp3 = workspace[row + 1];
+
+			z1 = tmp0 + tmp3;
+			z2 = tmp1 + tmp2;
+			z3 = tmp0 + tmp2;
+			z4 = tmp1 + tmp3;
+			z5 = (z3 + z4) * FIX_1_175875602;
+
+			tmp0 *= FIX_0_298631336;
+			tmp1 *= FIX_2_053119869;
+			tmp2 *= FIX_3_072711026;
+			tmp3 *= FIX_1_501321110;
+			z1 *= -FIX_0_899976223;
+			z2 *= -FIX_2_562915447;
+			z3 = z3 * -FIX_1_961570560 + z5;
+			z4 = z4 * -FIX_0_390180644 + z5;
+
+			tmp0 += z1 + z3;
+			tmp1 += z2 + z4;
+			tmp2 += z2 + z3;
+			tmp3 += z1 + z4;
+
+			block[row]     = truncate(tmp10 + tmp3, CONST_BITS + PASS1_BITS + 3);
+			block[row + 7] = truncate(tmp10 - tmp3, CONST_BITS + PASS1_BITS + 3);
+			block[row + 1] = truncate(tmp11 + tmp2, CONST_BITS + PASS1_BITS + 3);
+			block[row + 6] = truncate(tmp11 - tmp2, CONST_BITS + PASS1_BITS + 3);
+			block[row + 2] = truncate(tmp12 + tmp1, CONST_BITS + PASS1_BITS + 3);
+			block[row + 5] = truncate(tmp12 - tmp1, CONST_BITS + PASS1_BITS + 3);
+			block[row + 3] = truncate(tmp13 + tmp0, CONST_BITS + PASS1_BITS + 3);
+			block[row + 4] = truncate(tmp13 - tmp0, CONST_BITS + PASS1_BITS + 3);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.ociweb.jpgRaster.j2r;
 
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -10,8 +11,6 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.pipe.PipeWriter;
@@ -30,11 +29,43 @@ public class InverseDCTStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	private final Pipe<JPGSchema> output;
 	boolean verbose;
-	private double[] idctMap;
+	boolean integerIDCT;
+	int blockSize;
+	private static final double[] idctMap = new double[64];
+	// reduced transforms of the lowest 4x4 and 2x2 coefficients, by output size
+	private static final double[][] reducedIdctMaps = new double[5][];
 	
 	private Header header;
-	private MCU mcu;
+	private MCUBatch batch;
 	private double[] temp = new double[64];
+	private int[] workspace = new int[64];
+	
+	static {
+		// prepare idctMap
+		for (int u = 0; u < 8; ++u) {
+			double c = 1.0 / 2.0;
+			if (u == 0) {
+				c = 1 / Math.sqrt(2.0) / 2.0;
+			}
+			for (int x = 0; x < 8; ++x) {
+				idctMap[u * 8 + x] = c * Math.cos((2.0 * x + 1.0) * u * Math.PI / 16.0);
+			}
+		}
+		// an N point transform with the 8 point scale factors,
+		// so each output is the level of the 8 / N pixels it stands for
+		for (int n = 2; n <= 4; n *= 2) {
+			reducedIdctMaps[n] = new double[n * n];
+			for (int u = 0; u < n; ++u) {
+				double c = 1.0 / 2.0;
+				if (u == 0) {
+					c = 1 / Math.sqrt(2.0) / 2.0;
+				}
+				for (int x = 0; x < n; ++x) {
+					reducedIdctMaps[n][u * n + x] = c * Math.cos((2.0 * x + 1.0) * u * Math.PI / (2.0 * n));
+				}
+			}
+		}
+	}
 
 	/**
 	 * Constructor for InverseDCTStage
@@ -44,10 +75,26 @@ public class InverseDCTStage extends PronghornStage {
 	 * @param verbose
 	 */
 	public InverseDCTStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose) {
+		this(graphManager, input, output, verbose, false, 8);
+	}
+	
+	/**
+	 * Constructor for InverseDCTStage
+	 * @param graphManager
+	 * @param input _in_ Defined JPG schema
+	 * @param output _out_ Outputs the JPG schema onto the pipe
+	 * @param verbose
+	 * @param integerIDCT use the scaled integer IntegerIDCT instead of the double precision transform
+	 * @param blockSize 8 for the full transform, 4 or 2 for the reduced transforms of 1/2 and 1/4 scale images,
+	 *        or 1 to turn the DC value of each block into a single pixel
+	 */
+	public InverseDCTStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean integerIDCT, int blockSize) {
 		super(graphManager, input, output);
 		this.input = input;
 		this.output = output;
 		this.verbose = verbose;
+		this.integerIDCT = integerIDCT;
+		this.blockSize = blockSize;
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
@@ -56,23 +103,12 @@ public class InverseDCTStage extends PronghornStage {
 	@Override
 	public void startup() {
 		temp = new double[64];
-		mcu = new MCU();
-		idctMap = new double[64];
-		
-		// prepare idctMap
-		for (int u = 0; u < 8; ++u) {
-			double c = 1.0 / 2.0;
-			if (u == 0) {
-				c = 1 / Math.sqrt(2.0) / 2.0;
-			}
-			for (int x = 0; x < 8; ++x) {
-				idctMap[u * 8 + x] = c * Math.cos((2.0 * x + 1.0) * u * Math.PI / 16.0);
-			}
-		}
+		workspace = new int[64];
+		batch = new MCUBatch(input, blockSize);
 	}
 	
 	
-	private void TransformColumn(short[] in, double[] out, int offset) {
+	private static void TransformColumn(short[] in, double[] out, int offset) {
 		double temp;
 		for (int y = 0; y < 8; ++y) {
 			temp = 0;
@@ -83,7 +119,7 @@ public class InverseDCTStage extends PronghornStage {
 		}
 	}
 	
-	private void TransformRow(double[] in, short[] out, int offset) {
+	private static void TransformRow(double[] in, short[] out, int offset) {
 		double temp;
 		for (int x = 0; x < 8; ++x) {
 			temp = 0;
@@ -94,7 +130,7 @@ public class InverseDCTStage extends PronghornStage {
 		}
 	}
 	
-	private void TransformBlock(short[] mcu) {
+	static void TransformBlock(short[] mcu, double[] temp) {
 		for (int i = 0; i < 8; ++i) {
 			TransformColumn(mcu, temp, i);
 		}
@@ -103,6 +139,58 @@ public class InverseDCTStage extends PronghornStage {
 		}
 	}
 	
+	// the 1x1 transform, the DC value scaled to the average of the 8x8 pixels
+	static void TransformBlockDC(short[] mcu) {
+		mcu[0] = (short)((mcu[0] + 4) >> 3);
+	}
+	
+	/**
+	 * Transforms the top left blockSize x blockSize coefficients into as many pixels,
+	 * left in the top left of the block, for images scaled down by 8 / blockSize.
+	 * The higher frequencies cannot be shown at that size and are ignored.
+	 */
+	static void TransformBlock(short[] mcu, double[] temp, int blockSize) {
+		if (blockSize == 8) {
+			TransformBlock(mcu, temp);
+			return;
+		}
+		if (blockSize == 1) {
+			TransformBlockDC(mcu);
+			return;
+		}
+		double[] map = reducedIdctMaps[blockSize];
+		for (int i = 0; i < blockSize; ++i) {
+			for (int y = 0; y < blockSize; ++y) {
+				double sum = 0;
+				for (int v = 0; v < blockSize; ++v) {
+					sum += mcu[v * 8 + i] * map[v * blockSize + y];
+				}
+				temp[y * 8 + i] = sum;
+			}
+		}
+		for (int j = 0; j < blockSize; ++j) {
+			for (int x = 0; x < blockSize; ++x) {
+				double sum = 0;
+				for (int u = 0; u < blockSize; ++u) {
+					sum += temp[j * 8 + u] * map[u * blockSize + x];
+				}
+				mcu[j * 8 + x] = (short) Math.round(sum);
+			}
+		}
+	}
+	
+	private void TransformBlock(short[] mcu) {
+		if (blockSize < 8) {
+			TransformBlock(mcu, temp, blockSize);
+		}
+		else if (integerIDCT) {
+			IntegerIDCT.transformBlock(mcu, workspace);
+		}
+		else {
+			TransformBlock(mcu, temp);
+		}
+	}
+	
 	public void inverseDCT(MCU mcu, Header header) {
 		TransformBlock(mcu.y);
 		if (header.numComponents > 1) {
@@ -171,46 +259,15 @@ public class InverseDCTStage extends PronghornStage {
 					requestShutdown();
 				}
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
-				}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 				
-				inverseDCT(mcu, header);
-
-				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-					DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.y[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cb[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cr[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-					
-					PipeWriter.publishWrites(output);
+				for (int i = 0; i < batch.count; ++i) {
+					inverseDCT(batch.mcus[i], header);
 				}
-				else {
+				
+				if (!batch.write(output)) {
 					logger.error("Inverse DCT requesting shutdown");
 					requestShutdown();
 				}
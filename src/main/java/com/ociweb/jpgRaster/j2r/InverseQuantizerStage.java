@@ -9,10 +9,10 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPG;
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.QuantizationTable;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.pipe.DataInputBlobReader;
@@ -33,9 +33,19 @@ public class InverseQuantizerStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	private final Pipe<JPGSchema> output;
 	boolean verbose;
+	int blockSize;
 	
 	Header header;
-	MCU mcu;
+	MCUBatch batch;
+	
+	// position in zig zag order of each coefficient, for dequantizing part of a block
+	private static final int[] zigZagPosition = new int[64];
+	
+	static {
+		for (int i = 0; i < 64; ++i) {
+			zigZagPosition[JPG.zigZagMap[i]] = i;
+		}
+	}
 
 	/**
 	 *
@@ -45,16 +55,29 @@ public class InverseQuantizerStage extends PronghornStage {
 	 * @param verbose
 	 */
 	public InverseQuantizerStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose) {
+		this(graphManager, input, output, verbose, 8);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ Input JPG schema
+	 * @param output _out_ Output JPG schema
+	 * @param verbose
+	 * @param blockSize only the top left blockSize x blockSize coefficients of each block are dequantized
+	 */
+	public InverseQuantizerStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, int blockSize) {
 		super(graphManager, input, output);
 		this.input = input;
 		this.output = output;
 		this.verbose = verbose;
+		this.blockSize = blockSize;
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 	
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(input, blockSize);
 	}
 	
 	private static void dequantizeMCU(short[] MCU, QuantizationTable table) {
@@ -64,6 +87,14 @@ public class InverseQuantizerStage extends PronghornStage {
 		}
 	}
 	
+	private static void dequantizeMCU(short[] MCU, QuantizationTable table, int blockSize) {
+		for (int i = 0; i < blockSize * 8; i += 8) {
+			for (int j = i; j < i + blockSize; ++j) {
+				MCU[j] = (short)(MCU[j] * table.table[zigZagPosition[j]]);
+			}
+		}
+	}
+	
 	public static void dequantize(MCU mcu, Header header) {
 		dequantizeMCU(mcu.y, header.quantizationTables[header.colorComponents[0].quantizationTableID]);
 		if (header.numComponents > 1) {
@@ -72,6 +103,18 @@ public class InverseQuantizerStage extends PronghornStage {
 		}
 		return;
 	}
+	
+	public static void dequantize(MCU mcu, Header header, int blockSize) {
+		if (blockSize == 8) {
+			dequantize(mcu, header);
+			return;
+		}
+		dequantizeMCU(mcu.y, header.quantizationTables[header.colorComponents[0].quantizationTableID], blockSize);
+		if (header.numComponents > 1) {
+			dequantizeMCU(mcu.cb, header.quantizationTables[header.colorComponents[1].quantizationTableID], blockSize);
+			dequantizeMCU(mcu.cr, header.quantizationTables[header.colorComponents[2].quantizationTableID], blockSize);
+		}
+	}
 
 	@Override
 	public void run() {
@@ -154,46 +197,15 @@ public class InverseQuantizerStage extends PronghornStage {
 				header.quantizationTables[i] = table;
 				//header.quantizationTables[table.tableID] = table;
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
-				}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 				
-				dequantize(mcu, header);
-
-				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-					DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.y[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cb[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cr[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-					
-					PipeWriter.publishWrites(output);
+				for (int i = 0; i < batch.count; ++i) {
+					dequantize(batch.mcus[i], header, blockSize);
 				}
-				else {
+				
+				if (!batch.write(output)) {
 					logger.error("Inverse Quantizer requesting shutdown");
 					requestShutdown();
 				}
@@ -3,22 +3,31 @@ package com.ociweb.jpgRaster.j2r;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.jpgRaster.JPG;
 import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPG.HuffmanTable;
 import com.ociweb.jpgRaster.JPG.MCU;
 import com.ociweb.jpgRaster.JPG.QuantizationTable;
+import com.ociweb.jpgRaster.JPG.Region;
 import com.ociweb.jpgRaster.JPGConstants;
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeWriter;
@@ -33,18 +42,25 @@ public class JPGScannerStage extends PronghornStage {
 
 	private static final Logger logger = LoggerFactory.getLogger(JPGScannerStage.class);
 			
-	private ArrayList<String> workdownList;
+	private Queue<String> workdownList;
 	private final Pipe<JPGSchema> output;
 	private boolean verbose;
+	private boolean parallelRestarts;
 	private final Collection<String> files;
 	
 	private HuffmanDecoder decoder;
+	private ForkJoinPool pool;
 	
 	private int mcuWidth = 0;
 	private int mcuHeight = 0;
 	private int numMCUs = 0;
+	private int blocksPerMCU = 1;
 	private int numProcessed = 0;
-	private int aboutToSend = 0;
+	
+	// offsets of the RSTn markers within the scan data
+	private ArrayList<Integer> restartMarkers = new ArrayList<Integer>();
+	// true when the whole image was decoded into mcus by ReadJPG
+	private boolean decodedAhead = false;
 	
 	private Header header;
 	private MCU mcu1;
@@ -52,6 +68,22 @@ public class JPGScannerStage extends PronghornStage {
 	private MCU mcu3;
 	private MCU mcu4;
 	private ArrayList<MCU> mcus;
+	private MCUBatch batch;
+	private boolean mmap;
+	// encoded images by name when decoding from memory instead of files
+	private Map<String, ByteBuffer> images;
+	// files is a queue filled by other threads, ended by JPG.END_OF_INPUT
+	private boolean persistent;
+	// 8 for full size images, 4 or 2 for 1/2 or 1/4 scale, 1 for previews of the DC values only
+	private int blockSize = 8;
+	// part of each image to decode, or null for the whole image
+	private Region region;
+	// MCU rows and columns of the region, the end ones exclusive
+	private int firstRow;
+	private int endRow;
+	private int firstColumn;
+	private int endColumn;
+	private int mcuColumns;
 
 	/**
 	 *
@@ -62,38 +94,103 @@ public class JPGScannerStage extends PronghornStage {
 	 */
 	public JPGScannerStage(GraphManager graphManager, Pipe<JPGSchema> output,
 			           boolean verbose, Collection<String> files) {
+		this(graphManager, output, verbose, false, false, 8, null, files);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param output _out_ Output JPG schema
+	 * @param verbose
+	 * @param parallelRestarts decode the restart intervals of sequential images in parallel
+	 * @param mmap map input files read-only instead of copying them onto the heap
+	 * @param blockSize 8 to decode whole blocks, 4 or 2 to pass on only the lowest 4x4 or 2x2 coefficients,
+	 *        or 1 to keep only the DC value of each block; the header gives the size of the scaled image
+	 * @param region part of each image to pass on, or null for all of it; the header gives the size of the
+	 *        region widened to the MCUs it starts in, and images that it misses are invalid
+	 * @param files
+	 */
+	public JPGScannerStage(GraphManager graphManager, Pipe<JPGSchema> output,
+			           boolean verbose, boolean parallelRestarts, boolean mmap, int blockSize, Region region, Collection<String> files) {
 		super(graphManager, NONE, output);
 		this.output = output;
 		this.verbose = verbose;
+		this.parallelRestarts = parallelRestarts;
+		this.mmap = mmap;
+		this.blockSize = blockSize;
+		this.region = region;
 		this.files = files;
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 	
+	/**
+	 * Decodes images as their names are added to a shared queue, so the graph can stay up between jobs.
+	 * The stage keeps running while the queue is empty, and every name gets a header,
+	 * with a width and height of 0 if the image could not be read.
+	 * Queuing JPG.END_OF_INPUT sends the final header that ends the graph.
+	 * @param graphManager
+	 * @param output _out_ Output JPG schema
+	 * @param verbose
+	 * @param parallelRestarts decode the restart intervals of sequential images in parallel
+	 * @param mmap map input files read-only instead of copying them onto the heap
+	 * @param blockSize 8 to decode whole blocks, 4 or 2 for 1/2 or 1/4 scale, or 1 to keep only the DC value of each block
+	 * @param region part of each image to pass on, or null for all of it
+	 * @param names queue of file or image names to decode, filled by other threads
+	 * @param images encoded images by name, each one is removed once it has been read, or null to read files
+	 */
+	public JPGScannerStage(GraphManager graphManager, Pipe<JPGSchema> output,
+			           boolean verbose, boolean parallelRestarts, boolean mmap, int blockSize, Region region, Queue<String> names, Map<String, ByteBuffer> images) {
+		this(graphManager, output, verbose, parallelRestarts, mmap, blockSize, region, names);
+		this.images = images;
+		this.persistent = true;
+	}
+	
 	
 	@Override
 	public void startup() {
-		decoder = new HuffmanDecoder();
+		decoder = new HuffmanDecoder(blockSize == 1);
 		
-		workdownList = new ArrayList<String>();
-		workdownList.addAll(files);
+		if (persistent) {
+			workdownList = (Queue<String>) files;
+		}
+		else {
+			workdownList = new ArrayDeque<String>(files);
+		}
 		
 		mcu1 = new MCU();
 		mcu2 = new MCU();
 		mcu3 = new MCU();
 		mcu4 = new MCU();
+		batch = new MCUBatch(output, blockSize);
 		
+		if (parallelRestarts) {
+			pool = new ForkJoinPool();
+		}
+	}
+	
+	@Override
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
 	}
 	
 	
 	/**
-	 * Reads JPG File into an ArrayList of MCUs.
+	 * Reads a whole file into a ByteBuffer, or maps it read-only
+	 * so the parser works straight from the page cache.
 	 * 
 	 * @param filename name of file to be read
-	 * @param mcus ArrayList of MCUs to be populated during the decoding process
 	 */
-	private Header ReadJPG(String filename, ArrayList<MCU> mcus) throws IOException {
-		Header header = new Header();
-		header.filename = filename;
+	private ByteBuffer readFile(String filename) throws IOException {
+		if (images != null) {
+			ByteBuffer image = images.remove(filename);
+			if (image == null || !image.hasRemaining()) {
+				throw new IOException();
+			}
+			// leave the position of the caller's buffer alone
+			return image.slice();
+		}
 		
 		FileInputStream f = new FileInputStream(filename);
 		FileChannel file = f.getChannel();
@@ -106,16 +203,39 @@ public class JPGScannerStage extends PronghornStage {
 			throw new IOException();
 		}
 		
-		ByteBuffer b = ByteBuffer.allocate(numBytes);
-		int bytesRead = 0;
-		
-		while(bytesRead < numBytes) {
-			bytesRead += file.read(b);
+		ByteBuffer b;
+		if (mmap) {
+			// the mapping stays valid after the channel is closed
+			b = file.map(FileChannel.MapMode.READ_ONLY, 0, numBytes);
+		}
+		else {
+			b = ByteBuffer.allocate(numBytes);
+			int bytesRead = 0;
+			
+			while(bytesRead < numBytes) {
+				bytesRead += file.read(b);
+			}
+			b.flip();
 		}
 		
 		file.close();
 		f.close();
-		b.flip();
+		return b;
+	}
+	
+	/**
+	 * Reads JPG File into an ArrayList of MCUs.
+	 * 
+	 * @param filename name of file to be read
+	 * @param mcus ArrayList of MCUs to be populated during the decoding process
+	 */
+	private Header ReadJPG(String filename, ArrayList<MCU> mcus) throws IOException {
+		Header header = new Header();
+		header.filename = filename;
+		restartMarkers.clear();
+		decodedAhead = false;
+		
+		ByteBuffer b = readFile(filename);
 		
 		// JPG file must begin with 0xFFD8
 		
@@ -268,16 +388,19 @@ public class JPGScannerStage extends PronghornStage {
 		}
 		if (header.valid) {
 			if (header.frameType.equals("Progressive")) {
+				decodedAhead = true;
 				while (mcus.size() < numMCUs) {
 					mcus.add(new MCU());
 				}
 				int numScans = 0;
+				int scanStart = b.position();
 				current = (short)(b.get() & 0xFF);
 				while (true) {
 					last = current;
 					current = (short)(b.get() & 0xFF);
 					if (last == 0xFF) {
 						if      (current == JPGConstants.EOI) {
+							header.imageData = sliceScan(b, scanStart, b.position() - 2);
 							decodeScan(header, mcus, numScans);
 							if (verbose) {
 								System.out.println("End of Image");
@@ -285,26 +408,29 @@ public class JPGScannerStage extends PronghornStage {
 							break;
 						}
 						else if (current == 0x00) {
-							header.imageData.add(last);
 							// advance by a byte, to drop 0x00
 							current = (short)(b.get() & 0xFF);
 						}
 						else if (current == JPGConstants.DHT) {
-							if (header.imageData.size() > 0) {
+							if (b.position() - 2 > scanStart) {
+								header.imageData = sliceScan(b, scanStart, b.position() - 2);
 								decodeScan(header, mcus, numScans);
 								numScans += 1;
 							}
 							
 							ReadHuffmanTable(b, header);
+							scanStart = b.position();
 							current = (short)(b.get() & 0xFF);
 						}
 						else if (current == JPGConstants.SOS) {
-							if (header.imageData.size() > 0) {
+							if (b.position() - 2 > scanStart) {
+								header.imageData = sliceScan(b, scanStart, b.position() - 2);
 								decodeScan(header, mcus, numScans);
 								numScans += 1;
 							}
 							
 							ReadStartOfScan(b, header);
+							scanStart = b.position();
 							current = (short)(b.get() & 0xFF);
 						}
 						else if (current >= JPGConstants.RST0 && current <= JPGConstants.RST7) {
@@ -317,30 +443,29 @@ public class JPGScannerStage extends PronghornStage {
 							return header;
 						}
 					}
-					else {
-						header.imageData.add(last);
-					}
 				}
 			}
 			else { // if (header.frameType.equals("Baseline")) {
+				int scanStart = b.position();
 				current = (short)(b.get() & 0xFF);
 				while (true) {
 					last = current;
 					current = (short)(b.get() & 0xFF);
 					if (last == 0xFF) {
 						if (current == JPGConstants.EOI) {
+							header.imageData = sliceScan(b, scanStart, b.position() - 2);
 							if (verbose) {
 								System.out.println("End of Image");
 							}
 							break;
 						}
 						else if (current == 0x00) {
-							header.imageData.add(last);
 							// advance by a byte, to drop 0x00
 							current = (short)(b.get() & 0xFF);
 						}
 						else if (current >= JPGConstants.RST0 && current <= JPGConstants.RST7) {
 							ReadRSTN(b, header);
+							restartMarkers.add(b.position() - 2 - scanStart);
 							current = (short)(b.get() & 0xFF);
 						}
 						else if (current != 0xFF) {
@@ -349,9 +474,6 @@ public class JPGScannerStage extends PronghornStage {
 							return header;
 						}
 					}
-					else {
-						header.imageData.add(last);
-					}
 				}
 			}
 		}
@@ -381,14 +503,159 @@ public class JPGScannerStage extends PronghornStage {
 			header.valid = false;
 		}
 		
+		if (header.valid && parallelRestarts && header.restartInterval > 0 &&
+			!header.frameType.equals("Progressive")) {
+			decodedAhead = decodeRestartIntervals(header, mcus);
+		}
+		
 		return header;
 	}
 	
+	// view of the entropy-coded bytes between start and end, still containing
+	// stuffed bytes and RSTn markers, without copying them out of the file data
+	private static ByteBuffer sliceScan(ByteBuffer b, int start, int end) {
+		ByteBuffer scan = b.duplicate();
+		scan.limit(end);
+		scan.position(start);
+		return scan.slice();
+	}
+	
+	/**
+	 * Decodes every restart interval of a sequential scan on the fork-join pool.
+	 * The intervals are found from the RSTn markers indexed while reading the file,
+	 * and each one starts from a zero DC prediction, so they can be decoded independently.
+	 * The blocks are placed in mcus in the same order as for progressive images.
+	 * 
+	 * @param header object representation of JPG header
+	 * @param mcus ArrayList of MCUs to be populated
+	 * @return false if the markers do not match the restart interval, in which case
+	 *         the image is left to be decoded serially
+	 */
+	private boolean decodeRestartIntervals(Header header, ArrayList<MCU> mcus) {
+		if (header.numComponents == 1 && blocksPerMCU != 1) {
+			return false;
+		}
+		int numIntervals = (numMCUs / blocksPerMCU + header.restartInterval - 1) / header.restartInterval;
+		if (restartMarkers.size() < numIntervals - 1) {
+			logger.error("Error - Expected {} RSTN markers but found {}", numIntervals - 1, restartMarkers.size());
+			return false;
+		}
+		if (verbose) {
+			System.out.println("Decoding " + numIntervals + " restart intervals in parallel");
+		}
+		
+		ByteBuffer[] intervals = new ByteBuffer[numIntervals];
+		int start = 0;
+		for (int i = 0; i < numIntervals; ++i) {
+			int end = i < restartMarkers.size() ? restartMarkers.get(i) : header.imageData.limit();
+			intervals[i] = sliceScan(header.imageData, start, end);
+			start = end + 2;
+		}
+		
+		while (mcus.size() < numMCUs) {
+			mcus.add(new MCU());
+		}
+		int intervalsPerTask = Math.max(1, numIntervals / (pool.getParallelism() * 4));
+		pool.invoke(new RestartIntervalTask(header, intervals, mcus, mcuWidth, blocksPerMCU, blockSize == 1, 0, numIntervals, intervalsPerTask));
+		header.imageData = null;
+		return true;
+	}
+	
+	/**
+	 * Decodes a range of restart intervals, splitting it in half
+	 * until at most intervalsPerTask are left.
+	 */
+	private static class RestartIntervalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Header header;
+		private final ByteBuffer[] intervals;
+		private final ArrayList<MCU> mcus;
+		private final int mcuWidth;
+		private final int blocksPerMCU;
+		private final boolean dcOnly;
+		private final int first;
+		private final int last;
+		private final int intervalsPerTask;
+		
+		public RestartIntervalTask(Header header, ByteBuffer[] intervals, ArrayList<MCU> mcus, int mcuWidth,
+								   int blocksPerMCU, boolean dcOnly, int first, int last, int intervalsPerTask) {
+			this.header = header;
+			this.intervals = intervals;
+			this.mcus = mcus;
+			this.mcuWidth = mcuWidth;
+			this.blocksPerMCU = blocksPerMCU;
+			this.dcOnly = dcOnly;
+			this.first = first;
+			this.last = last;
+			this.intervalsPerTask = intervalsPerTask;
+		}
+		
+		@Override
+		protected void compute() {
+			if (last - first > intervalsPerTask) {
+				int middle = (first + last) >>> 1;
+				invokeAll(new RestartIntervalTask(header, intervals, mcus, mcuWidth, blocksPerMCU, dcOnly, first, middle, intervalsPerTask),
+						  new RestartIntervalTask(header, intervals, mcus, mcuWidth, blocksPerMCU, dcOnly, middle, last, intervalsPerTask));
+				return;
+			}
+			
+			HuffmanDecoder decoder = new HuffmanDecoder(dcOnly);
+			int horizontal = header.colorComponents[0].horizontalSamplingFactor;
+			int vertical = header.colorComponents[0].verticalSamplingFactor;
+			int numMCUs = mcus.size() / blocksPerMCU;
+			MCU mcu1 = null;
+			MCU mcu2 = null;
+			MCU mcu3 = null;
+			MCU mcu4 = null;
+			for (int i = first; i < last; ++i) {
+				if (i == first) {
+					decoder.beginDecode(header, intervals[i]);
+				}
+				else {
+					decoder.restart(intervals[i]);
+				}
+				int end = Math.min((i + 1) * header.restartInterval, numMCUs);
+				for (int j = i * header.restartInterval; j < end; ++j) {
+					int numProcessed = j * blocksPerMCU;
+					int pos = numProcessed - (numProcessed % (mcuWidth * 2)) + (numProcessed % (mcuWidth * 2)) / 2;
+					if (horizontal == 1 && vertical == 1 || header.numComponents == 1) {
+						mcu1 = mcus.get(numProcessed);
+					}
+					else if (horizontal == 2 && vertical == 1) {
+						mcu1 = mcus.get(numProcessed);
+						mcu2 = mcus.get(numProcessed + 1);
+					}
+					else if (horizontal == 1 && vertical == 2) {
+						mcu1 = mcus.get(pos);
+						mcu3 = mcus.get(pos + mcuWidth);
+					}
+					else if (horizontal == 2 && vertical == 2) {
+						mcu1 = mcus.get(pos);
+						mcu2 = mcus.get(pos + 1);
+						mcu3 = mcus.get(pos + mcuWidth);
+						mcu4 = mcus.get(pos + mcuWidth + 1);
+					}
+					if (!decoder.decodeHuffmanData(mcu1, mcu2, mcu3, mcu4)) {
+						// the next interval can still be decoded
+						logger.error("Error during restart interval {}", i);
+						break;
+					}
+				}
+			}
+		}
+	}
+	
 	// decode a whole scan, progressive images only
 	private boolean decodeScan(Header header, ArrayList<MCU> mcus, int numScans) {
+		if (blockSize == 1 && header.startOfSelection != 0) {
+			// AC scans are independent of the DC values, so a preview never reads them
+			header.imageData = null;
+			return true;
+		}
 		// decode scan so far
 		if (verbose) {
-			System.out.println("Decoding a scan of size " + header.imageData.size());
+			System.out.println("Decoding a scan of size " + header.imageData.remaining());
 		}
 		decoder.beginDecode(header);
 
@@ -420,7 +687,7 @@ public class JPGScannerStage extends PronghornStage {
 			}
 			if (!decoder.decodeHuffmanData(mcu1, mcu2, mcu3, mcu4)) {
 				logger.error("Error during scan {}", numScans);
-				header.imageData.clear();
+				header.imageData = null;
 				return false;
 			}
 			if (horizontal == 1 && vertical == 1 || (!header.colorComponents[1].used && !header.colorComponents[2].used)) {
@@ -445,7 +712,7 @@ public class JPGScannerStage extends PronghornStage {
 				numProcessed += 4;
 			}
 		}
-		header.imageData.clear();
+		header.imageData = null;
 		return true;
 	}
 	
@@ -589,6 +856,7 @@ public class JPGScannerStage extends PronghornStage {
 			mcuHeight += 1;
 		}
 		numMCUs = mcuWidth * mcuHeight;
+		blocksPerMCU = header.colorComponents[0].horizontalSamplingFactor * header.colorComponents[0].verticalSamplingFactor;
 		numProcessed = 0;
 		
 		if (length - 8 - (header.numComponents * 3) != 0) {
@@ -769,73 +1037,119 @@ public class JPGScannerStage extends PronghornStage {
 		}
 	}
 	
-	private void sendMCU(MCU emcu) {
-		if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-			DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.y[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cb[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cr[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-			
-			
-			PipeWriter.publishWrites(output);
-			
-			numProcessed += 1;
-			if (header.restartInterval > 0 && numProcessed % header.restartInterval == 0) {
-				decoder.restart();
-			}
+	private void addMCU(MCU emcu) {
+		batch.add(emcu);
+		numProcessed += 1;
+		// the restart interval is counted in MCUs, not in blocks
+		if (!decodedAhead && header.restartInterval > 0 &&
+			numProcessed % (header.restartInterval * blocksPerMCU) == 0) {
+			decoder.restart();
+		}
+	}
+	
+	// leaves out an MCU of the image that is not in the region
+	private void skipMCU() {
+		numProcessed += blocksPerMCU;
+		if (!decodedAhead && header.restartInterval > 0 &&
+			numProcessed % (header.restartInterval * blocksPerMCU) == 0) {
+			decoder.restart();
+		}
+	}
+	
+	private boolean inRegion(int mcu) {
+		int row = mcu / mcuColumns;
+		int column = mcu % mcuColumns;
+		return row >= firstRow && row < endRow && column >= firstColumn && column < endColumn;
+	}
+	
+	/**
+	 * Works out which MCUs hold the region, and changes the size in the header to that of the region,
+	 * starting from the MCUs that x and y fall in and ending at the image edges if it goes past them.
+	 * @return false if the region misses the image
+	 */
+	private boolean setRegion(Header header) {
+		if (region.x >= header.width || region.y >= header.height) {
+			return false;
+		}
+		int mcuPixelWidth = 8 * header.colorComponents[0].horizontalSamplingFactor;
+		int mcuPixelHeight = 8 * header.colorComponents[0].verticalSamplingFactor;
+		int left = region.x - region.x % Region.ALIGNMENT;
+		int top = region.y - region.y % Region.ALIGNMENT;
+		int right = region.x + Math.min(region.width, header.width - region.x);
+		int bottom = region.y + Math.min(region.height, header.height - region.y);
+		
+		mcuColumns = mcuWidth / header.colorComponents[0].horizontalSamplingFactor;
+		firstColumn = left / mcuPixelWidth;
+		endColumn = (right + mcuPixelWidth - 1) / mcuPixelWidth;
+		firstRow = top / mcuPixelHeight;
+		endRow = (bottom + mcuPixelHeight - 1) / mcuPixelHeight;
+		header.width = right - left;
+		header.height = bottom - top;
+		return true;
+	}
+	
+	/**
+	 * Moves on from an MCU outside of the region without parsing the ones in between,
+	 * when it is past the end of the region, the MCUs were decoded ahead, or the next MCU
+	 * of the region starts a later restart interval, whose DC predictions start over from zero.
+	 * @return false if the MCU still has to be parsed for its DC values
+	 */
+	private boolean skipToRegion() {
+		int mcu = numProcessed / blocksPerMCU;
+		int row = mcu / mcuColumns;
+		int next;
+		if (row >= endRow) {
+			// nothing of the region is left
+			numProcessed = numMCUs;
+			return true;
+		}
+		else if (row < firstRow) {
+			next = firstRow * mcuColumns + firstColumn;
+		}
+		else if (mcu % mcuColumns < firstColumn) {
+			next = row * mcuColumns + firstColumn;
+		}
+		else if (row + 1 < endRow) {
+			next = (row + 1) * mcuColumns + firstColumn;
 		}
 		else {
-			logger.error("JPG Scanner requesting shutdown");
-			requestShutdown();
+			numProcessed = numMCUs;
+			return true;
+		}
+		if (decodedAhead) {
+			numProcessed = next * blocksPerMCU;
+			return true;
+		}
+		if (header.restartInterval == 0) {
+			return false;
 		}
+		int interval = next / header.restartInterval;
+		if (interval <= mcu / header.restartInterval || interval > restartMarkers.size()) {
+			return false;
+		}
+		decoder.restart(sliceScan(header.imageData, restartMarkers.get(interval - 1) + 2, header.imageData.limit()));
+		numProcessed = interval * header.restartInterval * blocksPerMCU;
+		return true;
 	}
 
 	@Override
 	public void run() {
 		long s = System.nanoTime();
+		if (numProcessed < numMCUs && batch.capacity() < blocksPerMCU) {
+			logger.error("JPG Scanner batch is smaller than one MCU, requesting shutdown");
+			requestShutdown();
+			return;
+		}
 		while (PipeWriter.hasRoomForWrite(output) && numProcessed < numMCUs) {
 			int horizontal = header.colorComponents[0].horizontalSamplingFactor;
 			int vertical = header.colorComponents[0].verticalSamplingFactor;
-			if (aboutToSend != 0) {
-				if (aboutToSend == 2) {
-					sendMCU(mcu2);
-					if (horizontal == 2 && vertical == 2) {
-						aboutToSend = 4;
-					}
-					else {
-						aboutToSend = 0;
-					}
-				}
-				else if (aboutToSend == 3) {
-					sendMCU(mcu3);
-					if (horizontal == 2 && vertical == 2) {
-						aboutToSend = 2;
-					}
-					else {
-						aboutToSend = 0;
-					}
+			// only whole MCUs are put in a batch
+			while (numProcessed < numMCUs && batch.count + blocksPerMCU <= batch.capacity()) {
+				boolean skipped = region != null && !inRegion(numProcessed / blocksPerMCU);
+				if (skipped && skipToRegion()) {
+					continue;
 				}
-				else { // if (aboutToSend == 4) {
-					sendMCU(mcu4);
-					aboutToSend = 0;
-				}
-			}
-			else {
-				if (header.frameType.equals("Progressive")) {
+				if (decodedAhead) {
 					int pos = numProcessed - (numProcessed % (mcuWidth * 2)) + (numProcessed % (mcuWidth * 2)) / 2;
 					if (horizontal == 1 && vertical == 1) {
 						mcu1 = mcus.get(numProcessed);
@@ -855,59 +1169,75 @@ public class JPGScannerStage extends PronghornStage {
 						mcu4 = mcus.get(pos + mcuWidth + 1);
 					}
 				}
+				else if (skipped) {
+					decoder.skipHuffmanData(mcu1, mcu2, mcu3, mcu4);
+				}
 				else {
 					decoder.decodeHuffmanData(mcu1, mcu2, mcu3, mcu4);
 				}
-				// write mcu to pipe
-				if (horizontal == 1 && vertical == 1) {
-					sendMCU(mcu1);
-					aboutToSend = 0;
+				// add mcu to batch
+				if (skipped) {
+					skipMCU();
+				}
+				else if (horizontal == 1 && vertical == 1) {
+					addMCU(mcu1);
 				}
 				else if (horizontal == 2 && vertical == 1) {
-					sendMCU(mcu1);
-					aboutToSend = 2;
-					if (PipeWriter.hasRoomForWrite(output)) {
-						sendMCU(mcu2);
-						aboutToSend = 0;
-					}
+					addMCU(mcu1);
+					addMCU(mcu2);
 				}
 				else if (horizontal == 1 && vertical == 2) {
-					sendMCU(mcu1);
-					aboutToSend = 3;
-					if (PipeWriter.hasRoomForWrite(output)) {
-						sendMCU(mcu3);
-						aboutToSend = 0;
-					}
+					addMCU(mcu1);
+					addMCU(mcu3);
 				}
 				else if (horizontal == 2 && vertical == 2) {
-					sendMCU(mcu1);
-					aboutToSend = 3;
-					if (PipeWriter.hasRoomForWrite(output)) {
-						sendMCU(mcu3);
-						aboutToSend = 2;
-						if (PipeWriter.hasRoomForWrite(output)) {
-							sendMCU(mcu2);
-							aboutToSend = 4;
-							if (PipeWriter.hasRoomForWrite(output)) {
-								sendMCU(mcu4);
-								aboutToSend = 0;
-							}
-						}
-					}
+					addMCU(mcu1);
+					addMCU(mcu3);
+					addMCU(mcu2);
+					addMCU(mcu4);
 				}
 			}
+			// write batch to pipe, unless every MCU so far was outside of the region
+			if (batch.count > 0 && !batch.write(output)) {
+				logger.error("JPG Scanner requesting shutdown");
+				requestShutdown();
+			}
 		}
-		if (PipeWriter.hasRoomForFragmentOfSize(output, 400) && !workdownList.isEmpty()) {
-			String file = workdownList.get(0);
-			workdownList.remove(0);
-			System.out.println(file);
+		// the next file waits until every MCU of this one is on the pipe
+		if (numProcessed >= numMCUs && PipeWriter.hasRoomForFragmentOfSize(output, 400) && !workdownList.isEmpty()) {
+			String file = workdownList.poll();
+			if (persistent && file.equals(JPG.END_OF_INPUT)) {
+				// the same empty final header that ends a list of files
+				writeInvalidHeader(file, 1);
+				// stop taking work, the rest of the queue belongs to any other scanners sharing it
+				workdownList = new ArrayDeque<String>();
+				if (verbose) {
+					System.out.println("All input files read.");
+				}
+				timer.addAndGet(System.nanoTime() - s);
+				return;
+			}
+			if (!persistent || verbose) {
+				System.out.println(file);
+			}
 			try {
 				mcus = new ArrayList<MCU>();
-				header = ReadJPG(file, mcus);
+				try {
+					header = ReadJPG(file, mcus);
+				}
+				catch (BufferUnderflowException e) {
+					// the file ends before its EOI marker, so it is invalid like any other bad JPG
+					logger.error("Error - JPG file '{}' ends early", file);
+					header = null;
+				}
+				if (header != null && header.valid && region != null && !setRegion(header)) {
+					logger.error("Error - Region is outside of JPG '{}'", file);
+					header.valid = false;
+				}
 				if (header == null || !header.valid) {
 					numMCUs = 0;
 					logger.error("Error - JPG file '{}' invalid",file);
-					if (workdownList.size() > 0) {
+					if (workdownList.size() > 0 && !persistent) {
 						return;
 					} else if (verbose) {
 						logger.error("All input files read.");
@@ -922,10 +1252,10 @@ public class JPGScannerStage extends PronghornStage {
 					if (verbose) {
 						System.out.println("JPG Scanner writing header to pipe...");
 					}
-					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, header.height);
-					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, header.width);
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, scaled(header.height));
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, scaled(header.width));
 					PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, file);
-					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, (workdownList.size() == 0 ? 1 : 0));
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, (workdownList.size() == 0 && !persistent ? 1 : 0));
 					PipeWriter.publishWrites(output);
 					if (!header.valid) {
 						return;
@@ -983,14 +1313,24 @@ public class JPGScannerStage extends PronghornStage {
 						}
 					}
 				}
-				if (header.frameType.equals("Baseline")) {
+				if (header.frameType.equals("Baseline") && !decodedAhead) {
+					// grayscale scans never write cb and cr, so nothing may be left from the previous file
+					mcu1 = new MCU();
+					mcu2 = new MCU();
+					mcu3 = new MCU();
+					mcu4 = new MCU();
 					decoder.beginDecode(header);
 				}
 			}
 			catch (IOException e) {
 				logger.error("Error - Unknown error reading file '{}'",file);
+				numMCUs = 0;
+				if (persistent) {
+					// the caller is still waiting on this image
+					writeInvalidHeader(file, 0);
+				}
 			}
-			if (workdownList.isEmpty()) {
+			if (workdownList.isEmpty() && !persistent) {
 				if (verbose) {
 					System.out.println("All input files read.");
 				}
@@ -999,6 +1339,25 @@ public class JPGScannerStage extends PronghornStage {
 		timer.addAndGet(System.nanoTime() - s);
 	}
 
+	// size of the decoded image, rounded up so every partial block keeps a pixel
+	private int scaled(int size) {
+		return (size * blockSize + 7) / 8;
+	}
+
+	private void writeInvalidHeader(String file, int last) {
+		if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_HEADERMESSAGE_1)) {
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, 0);
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, 0);
+			PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, file);
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, last);
+			PipeWriter.publishWrites(output);
+		}
+		else {
+			logger.error("JPG Scanner requesting shutdown");
+			requestShutdown();
+		}
+	}
+
 	public static AtomicLong timer = new AtomicLong(0);//NOTE: using statics like this is not recommended
 	
 	
@@ -1078,7 +1437,7 @@ public class JPGScannerStage extends PronghornStage {
 					System.out.println("\tHuffman AC Table ID: " + header.colorComponents[i].huffmanACTableID);
 					System.out.println("\tHuffman DC Table ID: " + header.colorComponents[i].huffmanDCTableID);
 				}
-				System.out.println("Length of Image Data: " + header.imageData.size());
+				System.out.println("Length of Image Data: " + header.imageData.remaining());
 			}
 			else {
 				logger.error("Error - Not a valid JPG file");
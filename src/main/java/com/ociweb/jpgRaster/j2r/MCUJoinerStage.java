@@ -0,0 +1,93 @@
+package com.ociweb.jpgRaster.j2r;
+
+import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts the MCU batches of the workers fed by MCUSplitterStage back in order.
+ * Every worker must write exactly one batch for each batch it reads, which holds
+ * for InverseQuantizer, InverseDCT, YCbCrToRGB and FusedDecoder as long as their
+ * pipes all carry the same batch size.
+ */
+public class MCUJoinerStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(MCUJoinerStage.class);
+
+	private final Pipe<JPGSchema>[] inputs;
+	private final Pipe<JPGSchema> output;
+	boolean verbose;
+
+	private int next = 0;
+	private byte[] scratch;
+
+	/**
+	 * @param graphManager
+	 * @param inputs _in_ One pipe per worker
+	 * @param output _out_ JPG schema in the order the scanner wrote it
+	 * @param verbose
+	 */
+	public MCUJoinerStage(GraphManager graphManager, Pipe<JPGSchema>[] inputs, Pipe<JPGSchema> output, boolean verbose) {
+		super(graphManager, inputs, output);
+		this.inputs = inputs;
+		this.output = output;
+		this.verbose = verbose;
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	private static boolean isMCUs(Pipe<JPGSchema> pipe) {
+		return PipeReader.peekMsg(pipe, JPGSchema.MSG_MCUBATCHMESSAGE_5) ||
+			   PipeReader.peekMsg(pipe, JPGSchema.MSG_MCUMESSAGE_4);
+	}
+
+	@Override
+	public void startup() {
+		scratch = new byte[output.maxVarLen];
+	}
+
+	@Override
+	public void run() {
+		while (PipeWriter.hasRoomForWrite(output) && PipeReader.hasContentToRead(inputs[next])) {
+			if (isMCUs(inputs[next])) {
+				PipeReader.tryReadFragment(inputs[next]);
+				MCUSplitterStage.copyFragment(inputs[next], output, PipeReader.getMsgIdx(inputs[next]), scratch);
+				PipeReader.releaseReadLock(inputs[next]);
+				next = (next + 1) % inputs.length;
+				continue;
+			}
+
+			// every worker has a copy of this message, so wait for all of them and keep one
+			for (int i = 0; i < inputs.length; ++i) {
+				if (!PipeReader.hasContentToRead(inputs[i])) {
+					return;
+				}
+			}
+			for (int i = 0; i < inputs.length; ++i) {
+				PipeReader.tryReadFragment(inputs[i]);
+			}
+			int msgIdx = PipeReader.getMsgIdx(inputs[0]);
+			if (msgIdx < 0) {
+				logger.error("MCU Joiner requesting shutdown");
+				requestShutdown();
+				return;
+			}
+			if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+				next = 0;
+			}
+			MCUSplitterStage.copyFragment(inputs[0], output, msgIdx, scratch);
+			if (verbose) {
+				System.out.println("MCU Joiner merged a message from " + inputs.length + " workers...");
+			}
+			for (int i = 0; i < inputs.length; ++i) {
+				PipeReader.releaseReadLock(inputs[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.ociweb.jpgRaster.j2r;
+
+import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fans the MCU batches of a JPG schema out to replicated workers in turn.
+ * Headers, color components and quantization tables are copied to every worker,
+ * and each header starts the turns over at the first worker, so MCUJoinerStage
+ * can put the batches back in order by reading the workers in the same turns.
+ */
+public class MCUSplitterStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(MCUSplitterStage.class);
+
+	private final Pipe<JPGSchema> input;
+	private final Pipe<JPGSchema>[] outputs;
+	boolean verbose;
+
+	private int next = 0;
+	private byte[] scratch;
+
+	/**
+	 * @param graphManager
+	 * @param input _in_ JPG schema from the scanner
+	 * @param outputs _out_ One pipe per worker
+	 * @param verbose
+	 */
+	public MCUSplitterStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema>[] outputs, boolean verbose) {
+		super(graphManager, input, outputs);
+		this.input = input;
+		this.outputs = outputs;
+		this.verbose = verbose;
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	private static boolean isMCUs(Pipe<JPGSchema> pipe) {
+		return PipeReader.peekMsg(pipe, JPGSchema.MSG_MCUBATCHMESSAGE_5) ||
+			   PipeReader.peekMsg(pipe, JPGSchema.MSG_MCUMESSAGE_4);
+	}
+
+	// PipeReader.copyBytes fails on fields that wrap around the end of the blob ring
+	private static void copyBytes(Pipe<JPGSchema> input, Pipe<JPGSchema> output, int loc, byte[] scratch) {
+		int length = PipeReader.readBytes(input, loc, scratch, 0);
+		PipeWriter.writeBytes(output, loc, scratch, 0, length);
+	}
+
+	/**
+	 * Copies every field of the fragment that has been read from input into a new fragment on output.
+	 * @param scratch holds one field at a time, at least input.maxVarLen bytes
+	 */
+	static boolean copyFragment(Pipe<JPGSchema> input, Pipe<JPGSchema> output, int msgIdx, byte[] scratch) {
+		if (!PipeWriter.tryWriteFragment(output, msgIdx)) {
+			return false;
+		}
+		if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+			PipeReader.copyInt(input, output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201);
+			copyBytes(input, output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, scratch);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401);
+		}
+		else if (msgIdx == JPGSchema.MSG_COLORCOMPONENTMESSAGE_2) {
+			PipeReader.copyInt(input, output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_COMPONENTID_102, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_COMPONENTID_102);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_HORIZONTALSAMPLINGFACTOR_202, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_HORIZONTALSAMPLINGFACTOR_202);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_VERTICALSAMPLINGFACTOR_302, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_VERTICALSAMPLINGFACTOR_302);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_QUANTIZATIONTABLEID_402, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_QUANTIZATIONTABLEID_402);
+		}
+		else if (msgIdx == JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3) {
+			PipeReader.copyInt(input, output, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_TABLEID_103, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_TABLEID_103);
+			PipeReader.copyInt(input, output, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_PRECISION_203, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_PRECISION_203);
+			copyBytes(input, output, JPGSchema.MSG_QUANTIZATIONTABLEMESSAGE_3_FIELD_TABLE_303, scratch);
+		}
+		else if (msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+			PipeReader.copyInt(input, output, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_COUNT_105);
+			copyBytes(input, output, JPGSchema.MSG_MCUBATCHMESSAGE_5_FIELD_MCUS_205, scratch);
+		}
+		else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
+			copyBytes(input, output, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104, scratch);
+			copyBytes(input, output, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204, scratch);
+			copyBytes(input, output, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304, scratch);
+		}
+		PipeWriter.publishWrites(output);
+		return true;
+	}
+
+	@Override
+	public void startup() {
+		scratch = new byte[input.maxVarLen];
+	}
+
+	@Override
+	public void run() {
+		while (PipeReader.hasContentToRead(input)) {
+			if (isMCUs(input)) {
+				if (!PipeWriter.hasRoomForWrite(outputs[next]) || !PipeReader.tryReadFragment(input)) {
+					return;
+				}
+				copyFragment(input, outputs[next], PipeReader.getMsgIdx(input), scratch);
+				PipeReader.releaseReadLock(input);
+				next = (next + 1) % outputs.length;
+				continue;
+			}
+
+			for (int i = 0; i < outputs.length; ++i) {
+				if (!PipeWriter.hasRoomForWrite(outputs[i])) {
+					return;
+				}
+			}
+			if (!PipeReader.tryReadFragment(input)) {
+				return;
+			}
+			int msgIdx = PipeReader.getMsgIdx(input);
+			if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+				next = 0;
+			}
+			if (msgIdx < 0) {
+				logger.error("MCU Splitter requesting shutdown");
+				requestShutdown();
+				return;
+			}
+			for (int i = 0; i < outputs.length; ++i) {
+				copyFragment(input, outputs[i], msgIdx, scratch);
+			}
+			if (verbose) {
+				System.out.println("MCU Splitter copied a message to " + outputs.length + " workers...");
+			}
+			PipeReader.releaseReadLock(input);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.ociweb.jpgRaster.j2r;
+
+import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
+import com.ociweb.jpgRaster.Raster;
+import com.ociweb.jpgRaster.JPG.ColorComponent;
+import com.ociweb.jpgRaster.JPG.Header;
+import com.ociweb.jpgRaster.JPG.MCU;
+import com.ociweb.jpgRaster.JPG.Region;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the RGB raster of a JPG Schema into memory and hands each
+ * finished image to a listener, instead of writing a file.
+ */
+public class RasterDumperStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(RasterDumperStage.class);
+
+	/**
+	 * Supplies the pixel buffers and receives the decoded images.
+	 * Both methods are called on the stage's thread.
+	 */
+	public interface Listener {
+		/**
+		 * @return a buffer of at least width * height * 3 bytes, or null to skip the image
+		 */
+		byte[] pixels(String name, int width, int height);
+
+		/**
+		 * @param raster the decoded image, or null if it could not be decoded
+		 */
+		void decoded(String name, Raster raster);
+	}
+
+	private final Pipe<JPGSchema> input;
+	private final Listener listener;
+	boolean verbose;
+	int blockSize;
+	// region the scanner decoded, or null for whole images
+	Region region;
+
+	Header header;
+	MCUBatch batch;
+	MCU mcu;
+
+	byte[] pixels;
+	int count;
+	int mcuHeight;
+	int mcuWidth;
+	int numMCUs;
+	int mcuHeightReal;
+	int mcuWidthReal;
+	int pos;
+	// columns and rows of the first MCUs that are left of or above the region
+	int offsetX;
+	int offsetY;
+	// size of the raster, the header size less the offsets
+	int width;
+	int height;
+	// name of the image whose MCUs are still arriving
+	String pending;
+
+	/**
+	 * Takes a JPG schema and passes every decoded image to the listener.
+	 * @param graphManager
+	 * @param input _in_ Input pipe to be dumped
+	 * @param verbose
+	 * @param listener
+	 */
+	public RasterDumperStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, Listener listener) {
+		this(graphManager, input, verbose, 8, null, listener);
+	}
+
+	/**
+	 * Takes a JPG schema and passes the decoded region of every image to the listener.
+	 * @param graphManager
+	 * @param input _in_ Input pipe to be dumped
+	 * @param verbose
+	 * @param blockSize width and height of the pixels in each block, 4, 2 or 1 for images scaled down by 2, 4 or 8
+	 * @param region the region given to the scanner, or null for whole images
+	 * @param listener
+	 */
+	public RasterDumperStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, int blockSize, Region region, Listener listener) {
+		super(graphManager, input, NONE);
+		this.input = input;
+		this.verbose = verbose;
+		this.blockSize = blockSize;
+		this.region = region;
+		this.listener = listener;
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		batch = new MCUBatch(input, blockSize);
+	}
+
+	// the rows of the raster are top to bottom and in RGB order, with no padding
+	private void copyPixels(int mcuNum) {
+		int curPixelY = (mcuNum / mcuWidth) * blockSize;
+		int curPixelX = (mcuNum % mcuWidth) * blockSize;
+		for (int i = Math.max(curPixelY, offsetY); i < curPixelY + blockSize && i < header.height; ++i) {
+			int offset = (i - offsetY) * width * 3;
+			for (int j = Math.max(curPixelX, offsetX); j < curPixelX + blockSize && j < header.width; ++j) {
+				int k = (i - curPixelY) * 8 + (j - curPixelX);
+				pixels[offset + (j - offsetX) * 3 + 0] = (byte)mcu.y[k];
+				pixels[offset + (j - offsetX) * 3 + 1] = (byte)mcu.cb[k];
+				pixels[offset + (j - offsetX) * 3 + 2] = (byte)mcu.cr[k];
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (PipeReader.tryReadFragment(input)) {
+
+			int msgIdx = PipeReader.getMsgIdx(input);
+
+			if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+				// read header from pipe
+				header = new Header();
+				header.height = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101);
+				header.width = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201);
+				header.filename = PipeReader.readASCII(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, new StringBuilder()).toString();
+				PipeReader.releaseReadLock(input);
+
+				if (pending != null) {
+					logger.error("Error - JPG '{}' ended early", pending);
+					listener.decoded(pending, null);
+					pending = null;
+				}
+				if (header.height == 0 || header.width == 0) {
+					// no MCUs follow an invalid image
+					listener.decoded(header.filename, null);
+					continue;
+				}
+
+				offsetX = 0;
+				offsetY = 0;
+				if (region != null) {
+					offsetX = region.x % Region.ALIGNMENT * blockSize / 8;
+					offsetY = region.y % Region.ALIGNMENT * blockSize / 8;
+				}
+				width = header.width - offsetX;
+				height = header.height - offsetY;
+				pixels = listener.pixels(header.filename, width, height);
+				count = 0;
+				mcuHeight = mcuHeightReal = (header.height + blockSize - 1) / blockSize;
+				mcuWidth = mcuWidthReal = (header.width + blockSize - 1) / blockSize;
+				numMCUs = mcuHeight * mcuWidth;
+				pos = 0;
+				pending = header.filename;
+			}
+			else if (msgIdx == JPGSchema.MSG_COLORCOMPONENTMESSAGE_2) {
+				// read color component data from pipe
+				ColorComponent component = new ColorComponent();
+				component.componentID = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_COMPONENTID_102);
+				component.horizontalSamplingFactor = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_HORIZONTALSAMPLINGFACTOR_202);
+				component.verticalSamplingFactor = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_VERTICALSAMPLINGFACTOR_302);
+				component.quantizationTableID = (short) PipeReader.readInt(input, JPGSchema.MSG_COLORCOMPONENTMESSAGE_2_FIELD_QUANTIZATIONTABLEID_402);
+				header.colorComponents[component.componentID - 1] = component;
+				header.numComponents += 1;
+				PipeReader.releaseReadLock(input);
+				if (component.componentID == 1) {
+					if (header.colorComponents[0].horizontalSamplingFactor == 2 &&
+						mcuWidth % 2 == 1) {
+						mcuWidth += 1;
+					}
+					if (header.colorComponents[0].verticalSamplingFactor == 2 &&
+						mcuHeight % 2 == 1) {
+						mcuHeight += 1;
+					}
+					numMCUs = mcuHeight * mcuWidth;
+				}
+			}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
+				PipeReader.releaseReadLock(input);
+
+				for (int k = 0; k < batch.count; ++k) {
+					mcu = batch.mcus[k];
+					if (pixels == null ||
+						mcuHeightReal < mcuHeight && pos / mcuWidth == mcuHeightReal ||
+						mcuWidthReal < mcuWidth && pos % mcuWidth == mcuWidthReal) {}
+					else {
+						copyPixels(pos);
+					}
+
+					count += 1;
+
+					if (header.colorComponents[0].verticalSamplingFactor == 2 &&
+						mcuHeight > 1) {
+						if (pos % (mcuWidth * 2) == mcuWidth * 2 - 1) {
+							pos += 1;
+						}
+						else if (pos < count) {
+							pos += mcuWidth;
+						}
+						else {
+							pos -= mcuWidth - 1;
+						}
+					}
+					else {
+						pos = count;
+					}
+
+					if (count >= numMCUs) {
+						if (verbose) {
+							System.out.println("Done with '" + header.filename + "'.");
+						}
+						listener.decoded(header.filename, pixels == null ? null : new Raster(width, height, pixels));
+						pixels = null;
+						pending = null;
+					}
+				}
+			}
+			else {
+				logger.error("RasterDumper requesting shutdown");
+				requestShutdown();
+			}
+		}
+	}
+}
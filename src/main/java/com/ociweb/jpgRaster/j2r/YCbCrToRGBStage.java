@@ -6,11 +6,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.pipe.PipeWriter;
@@ -27,10 +26,12 @@ public class YCbCrToRGBStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	private final Pipe<JPGSchema> output;
 	private boolean verbose;
-
-	private int aboutToSend = 0;
+	private boolean floatColor;
+	private int blockSize;
 	
 	private Header header;
+	private MCUBatch inBatch;
+	private MCUBatch outBatch;
 	private MCU mcu1;
 	private MCU mcu2;
 	private MCU mcu3;
@@ -38,7 +39,35 @@ public class YCbCrToRGBStage extends PronghornStage {
 	private short[] tempCB;
 	private short[] tempCR;
 	private int count = 0;
-	private byte[] rgb;
+	
+	// fixed point conversion tables, in the style of libjpeg's jdcolor.c
+	private static final int SCALEBITS = 16;
+	private static final int ONE_HALF = 1 << (SCALEBITS - 1);
+	// rangeLimit clamps any value in -1024..1023 to 0..255
+	private static final int RANGE_OFFSET = 1024;
+	private static final int RANGE_MASK = 2047;
+	private static final byte[] rangeLimit = new byte[2048];
+	private static final int[] crR = new int[256];
+	private static final int[] cbB = new int[256];
+	private static final int[] crG = new int[256];
+	private static final int[] cbG = new int[256];
+	
+	static {
+		for (int i = 0; i < 2048; ++i) {
+			rangeLimit[i] = (byte)Math.min(Math.max(i - RANGE_OFFSET, 0), 255);
+		}
+		for (int i = 0; i < 256; ++i) {
+			int x = i - 128;
+			crR[i] = (fix(1.40200) * x + ONE_HALF) >> SCALEBITS;
+			cbB[i] = (fix(1.77200) * x + ONE_HALF) >> SCALEBITS;
+			crG[i] = -fix(0.71414) * x;
+			cbG[i] = -fix(0.34414) * x + ONE_HALF;
+		}
+	}
+	
+	private static int fix(double x) {
+		return (int)(x * (1 << SCALEBITS) + 0.5);
+	}
 
 	/**
 	 *
@@ -48,26 +77,45 @@ public class YCbCrToRGBStage extends PronghornStage {
 	 * @param verbose
 	 */
 	public YCbCrToRGBStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose) {
+		this(graphManager, input, output, verbose, false, 8);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ Input JPG Schema
+	 * @param output _out_ Outputted JPG Schema
+	 * @param verbose
+	 * @param floatColor use the floating point conversion instead of the lookup tables
+	 * @param blockSize width and height of the pixels in each block, 8 unless the image is scaled down
+	 */
+	public YCbCrToRGBStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean floatColor, int blockSize) {
 		super(graphManager, input, output);
 		this.input = input;
 		this.output = output;
 		this.verbose = verbose;
+		this.floatColor = floatColor;
+		this.blockSize = blockSize;
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 	
 	@Override
 	public void startup() {
+		inBatch = new MCUBatch(input, blockSize);
+		outBatch = new MCUBatch(output, blockSize);
 		mcu1 = new MCU();
 		mcu2 = new MCU();
 		mcu3 = new MCU();
 		mcu4 = new MCU();
 		tempCB = new short[64];
 		tempCR = new short[64];
-		rgb = new byte[3];
 	}
 
-	private void convertToRGB(short Y, short Cb, short Cr) {
+	private static void convertToRGB(MCU mcu, int i) {
+		short Y = mcu.y[i];
+		short Cb = mcu.cb[i];
+		short Cr = mcu.cr[i];
 		short r, g, b;
 		r = (short)(Y + 1.402 * Cr + 128);
 		g = (short)((Y - (0.114 * (Y + 1.772 * Cb)) - 0.299 * (Y + 1.402 * Cr)) / 0.587 + 128);
@@ -90,23 +138,90 @@ public class YCbCrToRGBStage extends PronghornStage {
 		if (b > 255) {
 			b = 255;
 		}
-		rgb[0] = (byte)r;
-		rgb[1] = (byte)g;
-		rgb[2] = (byte)b;
+		mcu.y[i] = (byte)r;
+		mcu.cb[i] = (byte)g;
+		mcu.cr[i] = (byte)b;
 		//System.out.println("(" + Y + ", " + Cb + ", " + Cr + ") -> (" + rgb[0] + ", " + rgb[1] + ", " + rgb[2] + ")");
 	}
 	
-	public void convertYCbCrToRGB(MCU mcu) {
+	public static void convertYCbCrToRGB(MCU mcu) {
 		for (int i = 0; i < 64; ++i) {
-			convertToRGB(mcu.y[i], mcu.cb[i], mcu.cr[i]);
-			mcu.y[i] = rgb[0];
-			mcu.cb[i] = rgb[1];
-			mcu.cr[i] = rgb[2];
+			convertToRGB(mcu, i);
 		}
 		return;
 	}
 	
-	public void expandColumns(MCU mcu, MCU mcu2) {
+	public static void convertYCbCrToRGB(MCU mcu, boolean floatColor) {
+		if (floatColor) {
+			convertYCbCrToRGB(mcu);
+			return;
+		}
+		for (int i = 0; i < 64; ++i) {
+			convertToRGBTable(mcu, i);
+		}
+	}
+	
+	private static void convertToRGBTable(MCU mcu, int i) {
+		int y = mcu.y[i] + 128;
+		int cb = rangeLimit[(mcu.cb[i] + 128 + RANGE_OFFSET) & RANGE_MASK] & 0xFF;
+		int cr = rangeLimit[(mcu.cr[i] + 128 + RANGE_OFFSET) & RANGE_MASK] & 0xFF;
+		mcu.y[i]  = rangeLimit[(y + crR[cr] + RANGE_OFFSET) & RANGE_MASK];
+		mcu.cb[i] = rangeLimit[(y + ((cbG[cb] + crG[cr]) >> SCALEBITS) + RANGE_OFFSET) & RANGE_MASK];
+		mcu.cr[i] = rangeLimit[(y + cbB[cb] + RANGE_OFFSET) & RANGE_MASK];
+	}
+	
+	// converts the top left blockSize x blockSize pixels of a scaled block
+	public static void convertYCbCrToRGB(MCU mcu, boolean floatColor, int blockSize) {
+		if (blockSize == 8) {
+			convertYCbCrToRGB(mcu, floatColor);
+			return;
+		}
+		for (int i = 0; i < blockSize * 8; i += 8) {
+			for (int j = i; j < i + blockSize; ++j) {
+				if (floatColor) {
+					convertToRGB(mcu, j);
+				}
+				else {
+					convertToRGBTable(mcu, j);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Spreads the chroma of a scaled MCU, held by its top left block, over all of its blocks.
+	 * The blocks that are not part of the MCU are null.
+	 */
+	public static void expandScaled(MCU topLeft, MCU topRight, MCU bottomLeft, MCU bottomRight, int blockSize, short[] tempCB, short[] tempCR) {
+		for (int i = 0; i < blockSize * 8; ++i) {
+			tempCB[i] = topLeft.cb[i];
+			tempCR[i] = topLeft.cr[i];
+		}
+		int horizontal = topRight != null ? 2 : 1;
+		int vertical = bottomLeft != null ? 2 : 1;
+		expandScaled(topLeft, 0, 0, horizontal, vertical, blockSize, tempCB, tempCR);
+		if (topRight != null) {
+			expandScaled(topRight, 1, 0, horizontal, vertical, blockSize, tempCB, tempCR);
+		}
+		if (bottomLeft != null) {
+			expandScaled(bottomLeft, 0, 1, horizontal, vertical, blockSize, tempCB, tempCR);
+		}
+		if (bottomRight != null) {
+			expandScaled(bottomRight, 1, 1, horizontal, vertical, blockSize, tempCB, tempCR);
+		}
+	}
+	
+	private static void expandScaled(MCU mcu, int column, int row, int horizontal, int vertical, int blockSize, short[] tempCB, short[] tempCR) {
+		for (int i = 0; i < blockSize; ++i) {
+			for (int j = 0; j < blockSize; ++j) {
+				int from = ((row * blockSize + i) / vertical) * 8 + (column * blockSize + j) / horizontal;
+				mcu.cb[i * 8 + j] = tempCB[from];
+				mcu.cr[i * 8 + j] = tempCR[from];
+			}
+		}
+	}
+	
+	public static void expandColumns(MCU mcu, MCU mcu2, short[] tempCB, short[] tempCR) {
 		for (int i = 0; i < 64; ++i) {
 			tempCB[i] = mcu.cb[i];
 			tempCR[i] = mcu.cr[i];
@@ -130,7 +245,7 @@ public class YCbCrToRGBStage extends PronghornStage {
 		}
 	}
 	
-	public void expandRows(MCU mcu, MCU mcu2) {
+	public static void expandRows(MCU mcu, MCU mcu2, short[] tempCB, short[] tempCR) {
 		for (int i = 0; i < 64; ++i) {
 			tempCB[i] = mcu.cb[i];
 			tempCR[i] = mcu.cr[i];
@@ -154,7 +269,7 @@ public class YCbCrToRGBStage extends PronghornStage {
 		}
 	}
 	
-	public void expandColumnsAndRows(MCU mcu1, MCU mcu2, MCU mcu3, MCU mcu4) {
+	public static void expandColumnsAndRows(MCU mcu1, MCU mcu2, MCU mcu3, MCU mcu4, short[] tempCB, short[] tempCR) {
 		for (int i = 0; i < 64; ++i) {
 			tempCB[i] = mcu1.cb[i];
 			tempCR[i] = mcu1.cr[i];
@@ -208,67 +323,9 @@ public class YCbCrToRGBStage extends PronghornStage {
 		}
 	}
 	
-	public void sendMCU(MCU emcu) {
-		if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-			DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.y[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cb[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cr[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-			
-			PipeWriter.publishWrites(output);
-		}
-		else {
-			logger.error("YCbCrToRGB requesting shutdown");
-			requestShutdown();
-		}
-	}
-
 	@Override
 	public void run() {
 		long s = System.nanoTime();
-		if (PipeWriter.hasRoomForWrite(output) && aboutToSend != 0) {
-			int horizontal = header.colorComponents[0].horizontalSamplingFactor;
-			int vertical = header.colorComponents[0].verticalSamplingFactor;
-			if (aboutToSend != 0) {
-				if (aboutToSend == 2) {
-					sendMCU(mcu2);
-					if (horizontal == 2 && vertical == 2) {
-						aboutToSend = 3;
-					}
-					else {
-						aboutToSend = 0;
-					}
-				}
-				else if (aboutToSend == 3) {
-					sendMCU(mcu3);
-					if (horizontal == 2 && vertical == 2) {
-						aboutToSend = 4;
-					}
-					else {
-						aboutToSend = 0;
-					}
-				}
-				else { // if (aboutToSend == 4) {
-					sendMCU(mcu4);
-					aboutToSend = 0;
-				}
-			}
-		}
-		
 		while (PipeWriter.hasRoomForWrite(output) && PipeReader.tryReadFragment(input)) {
 			
 			int msgIdx = PipeReader.getMsgIdx(input);
@@ -325,132 +382,98 @@ public class YCbCrToRGBStage extends PronghornStage {
 					requestShutdown();
 				}
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				if (count == 0) {
-					for (int i = 0; i < 64; ++i) {
-						mcu1.y[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu1.cb[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu1.cr[i] = mcuReader.readShort();
-					}
-					
-					count = 1;
-					if (header.colorComponents[0].horizontalSamplingFactor == 1 &&
-						header.colorComponents[0].verticalSamplingFactor == 2) {
-						count = 5;
-					}
-				}
-				else if (count == 1){
-					for (int i = 0; i < 64; ++i) {
-						mcu2.y[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu2.cb[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu2.cr[i] = mcuReader.readShort();
-					}
-					
-					count = 2;
-					if (header.colorComponents[0].verticalSamplingFactor == 2) {
-						count = 5;
-					}
-				}
-				else if (count == 5){
-					for (int i = 0; i < 64; ++i) {
-						mcu3.y[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu3.cb[i] = mcuReader.readShort();
-					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu3.cr[i] = mcuReader.readShort();
-					}
-					
-					count = 2;
-					if (header.colorComponents[0].horizontalSamplingFactor == 2) {
-						count = 3;
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				inBatch.read(input, msgIdx);
+				PipeReader.releaseReadLock(input);
+				
+				int horizontal = header.colorComponents[0].horizontalSamplingFactor;
+				int vertical = header.colorComponents[0].verticalSamplingFactor;
+				for (int k = 0; k < inBatch.count; ++k) {
+					MCU mcu = inBatch.mcus[k];
+					if (count == 0) {
+						MCUBatch.copy(mcu, mcu1, blockSize);
+						count = 1;
+						if (horizontal == 1 && vertical == 2) {
+							count = 5;
+						}
 					}
-				}
-				else if (count == 3){
-					for (int i = 0; i < 64; ++i) {
-						mcu4.y[i] = mcuReader.readShort();
+					else if (count == 1) {
+						MCUBatch.copy(mcu, mcu2, blockSize);
+						count = 2;
+						if (vertical == 2) {
+							count = 5;
+						}
 					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu4.cb[i] = mcuReader.readShort();
+					else if (count == 5) {
+						MCUBatch.copy(mcu, mcu3, blockSize);
+						count = 2;
+						if (horizontal == 2) {
+							count = 3;
+						}
 					}
-					
-					for (int i = 0; i < 64; ++i) {
-						mcu4.cr[i] = mcuReader.readShort();
+					else if (count == 3) {
+						MCUBatch.copy(mcu, mcu4, blockSize);
+						count = 4;
 					}
 					
-					count = 4;
-				}
-				PipeReader.releaseReadLock(input);
-
-				if (count == header.colorComponents[0].horizontalSamplingFactor * header.colorComponents[0].verticalSamplingFactor) {
-					if (header.colorComponents[0].horizontalSamplingFactor == 2 &&
-						header.colorComponents[0].verticalSamplingFactor == 2) {
-						expandColumnsAndRows(mcu1, mcu2, mcu3, mcu4);
-						convertYCbCrToRGB(mcu1);
-						convertYCbCrToRGB(mcu2);
-						convertYCbCrToRGB(mcu3);
-						convertYCbCrToRGB(mcu4);
-						sendMCU(mcu1);
-						aboutToSend = 2;
-						if (PipeWriter.hasRoomForWrite(output)) {
-							sendMCU(mcu2);
-							aboutToSend = 3;
-							if (PipeWriter.hasRoomForWrite(output)) {
-								sendMCU(mcu3);
-								aboutToSend = 4;
-								if (PipeWriter.hasRoomForWrite(output)) {
-									sendMCU(mcu4);
-									aboutToSend = 0;
-								}
+					if (count == horizontal * vertical) {
+						if (outBatch.count + count > outBatch.capacity() && !outBatch.write(output)) {
+							logger.error("YCbCrToRGB requesting shutdown");
+							requestShutdown();
+						}
+						if (horizontal == 2 && vertical == 2) {
+							// mcu2 holds the bottom left block and mcu3 the top right one
+							if (blockSize < 8) {
+								expandScaled(mcu1, mcu3, mcu2, mcu4, blockSize, tempCB, tempCR);
 							}
+							else {
+								expandColumnsAndRows(mcu1, mcu2, mcu3, mcu4, tempCB, tempCR);
+							}
+							convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							convertYCbCrToRGB(mcu2, floatColor, blockSize);
+							convertYCbCrToRGB(mcu3, floatColor, blockSize);
+							convertYCbCrToRGB(mcu4, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu2);
+							outBatch.add(mcu3);
+							outBatch.add(mcu4);
 						}
-					}
-					else if (header.colorComponents[0].horizontalSamplingFactor == 2) {
-						expandColumns(mcu1, mcu2);
-						convertYCbCrToRGB(mcu1);
-						convertYCbCrToRGB(mcu2);
-						sendMCU(mcu1);
-						aboutToSend = 2;
-						if (PipeWriter.hasRoomForWrite(output)) {
-							sendMCU(mcu2);
-							aboutToSend = 0;
+						else if (horizontal == 2) {
+							if (blockSize < 8) {
+								expandScaled(mcu1, mcu2, null, null, blockSize, tempCB, tempCR);
+							}
+							else {
+								expandColumns(mcu1, mcu2, tempCB, tempCR);
+							}
+							convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							convertYCbCrToRGB(mcu2, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu2);
 						}
-					}
-					else if (header.colorComponents[0].verticalSamplingFactor == 2) {
-						expandRows(mcu1, mcu3);
-						convertYCbCrToRGB(mcu1);
-						convertYCbCrToRGB(mcu3);
-						sendMCU(mcu1);
-						aboutToSend = 3;
-						if (PipeWriter.hasRoomForWrite(output)) {
-							sendMCU(mcu3);
-							aboutToSend = 0;
+						else if (vertical == 2) {
+							if (blockSize < 8) {
+								expandScaled(mcu1, null, mcu3, null, blockSize, tempCB, tempCR);
+							}
+							else {
+								expandRows(mcu1, mcu3, tempCB, tempCR);
+							}
+							convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							convertYCbCrToRGB(mcu3, floatColor, blockSize);
+							outBatch.add(mcu1);
+							outBatch.add(mcu3);
 						}
+						else {
+							convertYCbCrToRGB(mcu1, floatColor, blockSize);
+							outBatch.add(mcu1);
+						}
+						
+						count = 0;
 					}
-					else {
-						convertYCbCrToRGB(mcu1);
-						sendMCU(mcu1);
-						aboutToSend = 0;
-					}
-					
-					count = 0;
+				}
+				
+				if (outBatch.count > 0 && !outBatch.write(output)) {
+					logger.error("YCbCrToRGB requesting shutdown");
+					requestShutdown();
 				}
 			}
 			else {
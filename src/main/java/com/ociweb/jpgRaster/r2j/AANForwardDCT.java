@@ -0,0 +1,94 @@
+package com.ociweb.jpgRaster.r2j;
+
+/*
+ * Forward DCT using the Arai, Agui and Nakajima factorization (5 multiplies per 1-D pass).
+ * This follows the IJG jfdctflt.c implementation, found here:
+ * <a href="https://github.com/libjpeg-turbo/libjpeg-turbo/blob/main/src/jfdctflt.c">jfdctflt.c</a>
+ *
+ * The outputs are not normalized: coefficient (u, v) comes out multiplied by
+ * scaleFactors[u * 8 + v]. QuantizerStage divides this back out along with the
+ * quantization table, so the scaling costs nothing per block.
+ */
+public class AANForwardDCT {
+
+	/**
+	 * What each output is multiplied by, in natural (not zig zag) order.
+	 * This is 8 * aan[u] * aan[v], with aan[0] = 1 and aan[k] = sqrt(2) * cos(k * PI / 16).
+	 */
+	public static final double[] scaleFactors = new double[64];
+	static {
+		double[] aan = new double[8];
+		aan[0] = 1.0;
+		for (int k = 1; k < 8; ++k) {
+			aan[k] = Math.sqrt(2.0) * Math.cos(k * Math.PI / 16.0);
+		}
+		for (int u = 0; u < 8; ++u) {
+			for (int v = 0; v < 8; ++v) {
+				scaleFactors[u * 8 + v] = 8.0 * aan[u] * aan[v];
+			}
+		}
+	}
+
+	private static void transform(float[] data, int offset, int step) {
+		float tmp0 = data[offset + 0 * step] + data[offset + 7 * step];
+		float tmp7 = data[offset + 0 * step] - data[offset + 7 * step];
+		float tmp1 = data[offset + 1 * step] + data[offset + 6 * step];
+		float tmp6 = data[offset + 1 * step] - data[offset + 6 * step];
+		float tmp2 = data[offset + 2 * step] + data[offset + 5 * step];
+		float tmp5 = data[offset + 2 * step] - data[offset + 5 * step];
+		float tmp3 = data[offset + 3 * step] + data[offset + 4 * step];
+		float tmp4 = data[offset + 3 * step] - data[offset + 4 * step];
+
+		// even part
+		float tmp10 = tmp0 + tmp3;
+		float tmp13 = tmp0 - tmp3;
+		float tmp11 = tmp1 + tmp2;
+		float tmp12 = tmp1 - tmp2;
+
+		data[offset + 0 * step] = tmp10 + tmp11;
+		data[offset + 4 * step] = tmp10 - tmp11;
+
+		float z1 = (tmp12 + tmp13) * 0.707106781f;
+		data[offset + 2 * step] = tmp13 + z1;
+		data[offset + 6 * step] = tmp13 - z1;
+
+		// odd part
+		tmp10 = tmp4 + tmp5;
+		tmp11 = tmp5 + tmp6;
+		tmp12 = tmp6 + tmp7;
+
+		float z5 = (tmp10 - tmp12) * 0.382683433f;
+		float z2 = 0.541196100f * tmp10 + z5;
+		float z4 = 1.306562965f * tmp12 + z5;
+		float z3 = tmp11 * 0.707106781f;
+
+		float z11 = tmp7 + z3;
+		float z13 = tmp7 - z3;
+
+		data[offset + 5 * step] = z13 + z2;
+		data[offset + 3 * step] = z13 - z2;
+		data[offset + 1 * step] = z11 + z4;
+		data[offset + 7 * step] = z11 - z4;
+	}
+
+	/**
+	 * Transforms one level shifted 8x8 block in place.
+	 * @param block samples in, scaled coefficients out, both in natural (not zig zag) order
+	 * @param workspace scratch space of at least 64 floats
+	 */
+	public static void transformBlock(short[] block, float[] workspace) {
+		for (int i = 0; i < 64; ++i) {
+			workspace[i] = block[i];
+		}
+		// rows, then columns
+		for (int i = 0; i < 8; ++i) {
+			transform(workspace, i * 8, 1);
+		}
+		for (int i = 0; i < 8; ++i) {
+			transform(workspace, i, 8);
+		}
+		for (int i = 0; i < 64; ++i) {
+			block[i] = (short)Math.round(workspace[i]);
+		}
+	}
+}
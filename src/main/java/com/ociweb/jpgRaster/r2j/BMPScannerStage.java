@@ -1,11 +1,12 @@
 package com.ociweb.jpgRaster.r2j;
 
+import com.ociweb.jpgRaster.JPG;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPGSchema;
 import com.ociweb.jpgRaster.JPG.MCU;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeWriter;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
@@ -14,8 +15,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -28,7 +31,7 @@ public class BMPScannerStage extends PronghornStage {
 
 	private static final Logger logger = LoggerFactory.getLogger(BMPScannerStage.class);
 			
-	private ArrayList<String> inputFiles;
+	private Queue<String> inputFiles;
 	private final Pipe<JPGSchema> output;
 	private boolean verbose;
 	private final Collection<String> files;
@@ -37,9 +40,25 @@ public class BMPScannerStage extends PronghornStage {
 	private int numMCUs = 0;
 	private int numProcessed = 0;
 	private int paddingSize = 0;
+	// luminance blocks across and down an MCU, 2 when the chroma is downsampled
+	private int horizontal = 1;
+	private int vertical = 1;
 	
 	private Header header;
-	private MCU mcu;
+	private MCUBatch batch;
+	private boolean mmap;
+	// files is a queue filled by other threads, ended by JPG.END_OF_INPUT
+	private boolean persistent;
+	// read one band of MCU rows at a time instead of the whole file
+	private boolean stream;
+	private FileChannel bmpChannel;
+	// file position of the first byte of pixel data, and bytes per row of pixels including padding
+	private long pixelPosition;
+	private int rowSize;
+	// the MCU row held in pixels, and the image row its first row holds
+	private int band;
+	private int firstRow;
+	private ByteBuffer bandBuffer;
 	
 	short[][] pixels;
 
@@ -51,14 +70,53 @@ public class BMPScannerStage extends PronghornStage {
 	 * @param files
 	 */
 	public BMPScannerStage(GraphManager graphManager, Pipe<JPGSchema> output, boolean verbose, Collection<String> files) {
+		this(graphManager, output, verbose, false, false, 1, 1, files);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param output _out_ Valid JPG schema from BMP will be put onto this pipe
+	 * @param verbose
+	 * @param mmap map input files read-only instead of copying them onto the heap
+	 * @param stream read only the rows of the next band of MCUs as it is needed, so memory use
+	 *        does not grow with the image
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 * @param files
+	 */
+	public BMPScannerStage(GraphManager graphManager, Pipe<JPGSchema> output, boolean verbose, boolean mmap, boolean stream, int horizontal, int vertical, Collection<String> files) {
 		super(graphManager, NONE, output);
 		this.output = output;
 		this.verbose = verbose;
+		this.mmap = mmap;
+		this.stream = stream;
+		this.horizontal = horizontal;
+		this.vertical = vertical;
 		this.files = files;
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 		GraphManager.addNota(graphManager, GraphManager.STAGE_NAME, "BMP going on!", this);
 	}
+	
+	/**
+	 * Encodes files as their names are added to a shared queue, so the graph can stay up between jobs.
+	 * The stage keeps running while the queue is empty, and every name gets a header,
+	 * with a width and height of 0 if the file could not be read.
+	 * Queuing JPG.END_OF_INPUT sends the final header that ends the graph.
+	 * @param graphManager
+	 * @param output _out_ Valid JPG schema from BMP will be put onto this pipe
+	 * @param verbose
+	 * @param mmap map input files read-only instead of copying them onto the heap
+	 * @param stream read only the rows of the next band of MCUs as it is needed
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 * @param names queue of files to encode, filled by other threads
+	 */
+	public BMPScannerStage(GraphManager graphManager, Pipe<JPGSchema> output, boolean verbose, boolean mmap, boolean stream, int horizontal, int vertical, Queue<String> names) {
+		this(graphManager, output, verbose, mmap, stream, horizontal, vertical, (Collection<String>) names);
+		this.persistent = true;
+	}
 
 	//NUMA
 	//do new init
@@ -66,16 +124,27 @@ public class BMPScannerStage extends PronghornStage {
 	//if you dont return from startup, nothing happens <- NO BUG no shared state across two stages
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(output);
+		if (batch.capacity() < horizontal * vertical) {
+			logger.error("Error - a batch of {} blocks cannot hold an MCU of {}", batch.capacity(), horizontal * vertical);
+			requestShutdown();
+		}
 		
-		inputFiles = new ArrayList<String>();
-		inputFiles.addAll(files);
+		if (persistent) {
+			inputFiles = (Queue<String>) files;
+		}
+		else {
+			inputFiles = new ArrayDeque<String>(files);
+		}
 	}
 	
-	public Header ReadBMP(String filename) throws IOException {
-		header = new Header();
-		header.filename = filename;
-		
+	/**
+	 * Reads a whole file into a ByteBuffer, or maps it read-only
+	 * so the pixels are read straight from the page cache.
+	 * 
+	 * @param filename name of file to be read
+	 */
+	private ByteBuffer readFile(String filename) throws IOException {
 		FileInputStream f = new FileInputStream(filename);
 		FileChannel file = f.getChannel();
 		
@@ -87,16 +156,37 @@ public class BMPScannerStage extends PronghornStage {
 			throw new IOException();
 		}
 		
-		ByteBuffer b = ByteBuffer.allocate(numBytes);
-		int bytesRead = 0;
-		
-		while(bytesRead < numBytes) {
-			bytesRead += file.read(b);
+		ByteBuffer b;
+		if (mmap) {
+			// the mapping stays valid after the channel is closed
+			b = file.map(FileChannel.MapMode.READ_ONLY, 0, numBytes);
 		}
-
+		else {
+			b = ByteBuffer.allocate(numBytes);
+			int bytesRead = 0;
+			
+			while(bytesRead < numBytes) {
+				bytesRead += file.read(b);
+			}
+			b.flip();
+		}
+		
 		file.close();
 		f.close();
-		b.flip();
+		return b;
+	}
+	
+	public Header ReadBMP(String filename) throws IOException {
+		header = new Header();
+		header.filename = filename;
+		
+		ByteBuffer b;
+		if (stream) {
+			b = readHeader(filename);
+		}
+		else {
+			b = readFile(filename);
+		}
 		
 		if ((b.get() & 0xFF) != 'B' || (b.get() & 0xFF) != 'M') {
 			logger.error("Error - not a BMP file");
@@ -119,6 +209,7 @@ public class BMPScannerStage extends PronghornStage {
 		offset |= (b.get() & 0xFF) << 8;
 		offset |= (b.get() & 0xFF) << 16;
 		offset |= (b.get() & 0xFF) << 24;
+		pixelPosition = offset;
 		
 		dibSize  = (b.get() & 0xFF); // hopefully 12 or 40
 		dibSize |= (b.get() & 0xFF) << 8;
@@ -204,30 +295,140 @@ public class BMPScannerStage extends PronghornStage {
 			return null;
 		}
 		
-		while (offset > 0) {
-			b.get();
-			--offset;
+		if (!stream) {
+			while (offset > 0) {
+				b.get();
+				--offset;
+			}
 		}
 		
 		// begin reading pixels...
-		mcuWidth = (header.width + 7) / 8;
-		mcuHeight = (header.height + 7) / 8;
+		// width and height in blocks, padded to whole MCUs
+		mcuWidth = (header.width + 8 * horizontal - 1) / (8 * horizontal) * horizontal;
+		mcuHeight = (header.height + 8 * vertical - 1) / (8 * vertical) * vertical;
 		numMCUs = mcuWidth * mcuHeight;
 		numProcessed = 0;
 		paddingSize = (4 - (header.width * 3) % 4) % 4;
+		firstRow = 0;
+		
+		if (stream) {
+			// the bands are read as the MCUs are sent
+			rowSize = header.width * 3 + paddingSize;
+			band = -1;
+			pixels = new short[vertical * 8][mcuWidth * 8 * 3];
+			if (bandBuffer == null || bandBuffer.capacity() < vertical * 8 * rowSize) {
+				bandBuffer = ByteBuffer.allocate(vertical * 8 * rowSize);
+			}
+			return header;
+		}
+		
 		pixels = new short[mcuHeight * 8][mcuWidth * 8 * 3];
 
-		int trailingRows = 8 - (mcuHeight * 8 - header.height);
+		// rows are stored bottom to top
+		readMCURow(b, header.height, 0);
 		
-		readMCURow(b, trailingRows, (mcuHeight - 1) * 8);
-		
-		for (int i = mcuHeight - 2; i >= 0; --i) {
-			readMCURow(b, 8, i * 8);
+		if (horizontal * vertical > 1 && header.width > 0 && header.height > 0) {
+			padEdges(header.height);
 		}
 		
 		return header;
 	}
 	
+	/**
+	 * Opens a file to be read a band at a time, and reads enough of it for the headers.
+	 * The channel stays open until the last band has been read.
+	 * 
+	 * @param filename name of file to be read
+	 */
+	private ByteBuffer readHeader(String filename) throws IOException {
+		closeChannel();
+		bmpChannel = new FileInputStream(filename).getChannel();
+		
+		int numBytes = (int)Math.min(54, bmpChannel.size());
+		if (numBytes == 0) {
+			closeChannel();
+			throw new IOException();
+		}
+		
+		ByteBuffer b = ByteBuffer.allocate(numBytes);
+		while (b.hasRemaining()) {
+			if (bmpChannel.read(b, b.position()) < 0) {
+				closeChannel();
+				throw new IOException();
+			}
+		}
+		b.flip();
+		return b;
+	}
+	
+	private void closeChannel() {
+		if (bmpChannel != null) {
+			try {
+				bmpChannel.close();
+			}
+			catch (IOException e) {}
+			bmpChannel = null;
+		}
+	}
+	
+	/**
+	 * Reads the pixel rows of one row of MCUs into pixels.
+	 * The rows are stored bottom to top, so the rows of a band are one run of the file,
+	 * starting at the lowest row of the band.
+	 * 
+	 * @param mcuRow
+	 */
+	private void readBand(int mcuRow) throws IOException {
+		band = mcuRow;
+		firstRow = mcuRow * vertical * 8;
+		int numRows = Math.min(vertical * 8, header.height - firstRow);
+		if (bmpChannel == null) {
+			// an earlier band could not be read
+			clearBand();
+			return;
+		}
+		
+		bandBuffer.clear();
+		bandBuffer.limit(numRows * rowSize);
+		long position = pixelPosition + (long)(header.height - firstRow - numRows) * rowSize;
+		while (bandBuffer.hasRemaining()) {
+			if (bmpChannel.read(bandBuffer, position + bandBuffer.position()) < 0) {
+				throw new IOException();
+			}
+		}
+		bandBuffer.flip();
+		readMCURow(bandBuffer, numRows, 0);
+		
+		if (horizontal * vertical > 1) {
+			padEdges(numRows);
+		}
+		else {
+			// the last band is not always full, and the array is reused
+			for (int i = numRows; i < pixels.length; ++i) {
+				Arrays.fill(pixels[i], (short)0);
+			}
+		}
+	}
+	
+	private void clearBand() {
+		for (int i = 0; i < pixels.length; ++i) {
+			Arrays.fill(pixels[i], (short)0);
+		}
+	}
+	
+	// repeats the last column and row of the image into the padding,
+	// so the chroma averaged along the right and bottom edges is not pulled toward black
+	private void padEdges(int numRows) {
+		for (int i = 0; i < numRows; ++i) {
+			for (int j = header.width * 3; j < mcuWidth * 24; ++j) {
+				pixels[i][j] = pixels[i][j - 3];
+			}
+		}
+		for (int i = numRows; i < pixels.length; ++i) {
+			System.arraycopy(pixels[numRows - 1], 0, pixels[i], 0, mcuWidth * 24);
+		}
+	}
+	
 	private void readMCURow(ByteBuffer b, int numRows, int startRow) throws IOException {
 		for (int i = numRows - 1; i >= 0; --i) {
 			for (int j = 0; j < header.width; ++j) {
@@ -241,8 +442,9 @@ public class BMPScannerStage extends PronghornStage {
 		}
 	}
 	
-	private void fillMCU(int index) {
-		int row = numProcessed / mcuWidth * 8;
+	// fills mcu with the block at the given column and row of blocks
+	private void fillMCU(int index, int blockRow, MCU mcu) {
+		int row = blockRow * 8 - firstRow;
 		for (int i = 0; i < 8; ++i) {
 			for (int j = 0; j < 8; ++j) {
 				mcu.y [i * 8 + j] = pixels[i + row][index * 24 + j * 3 + 0];
@@ -252,57 +454,66 @@ public class BMPScannerStage extends PronghornStage {
 		}
 	}
 	
-	private void sendMCU(MCU emcu) {
-		if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-			DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.y[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cb[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-			
-			DataOutputBlobWriter.openField(mcuWriter);
-			for (int i = 0; i < 64; ++i) {
-				mcuWriter.writeShort(emcu.cr[i]);
-			}
-			DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-			
-			
-			PipeWriter.publishWrites(output);
-			
-			numProcessed += 1;
-		}
-		else {
-			logger.error("BMP Scanner requesting shutdown");
-			requestShutdown();
-		}
-	}
-
 	@Override
 	public void run() {
 		long s = System.nanoTime();
 		//check for write before reading!
 		//prefer while otherwise no throughput
 		while (PipeWriter.hasRoomForWrite(output) && numProcessed < numMCUs) {
-			fillMCU(numProcessed % mcuWidth);
-			//JPG.printMCU(mcu);
-			sendMCU(mcu);
-		}
-		if (PipeWriter.hasRoomForWrite(output) && !inputFiles.isEmpty()) {
-			String file = inputFiles.get(0);
-			inputFiles.remove(0);
-			System.out.println(file);
+			// the blocks of an MCU go left to right, top to bottom, and always in the same batch
+			while (numProcessed < numMCUs && batch.count + horizontal * vertical <= batch.capacity()) {
+				int mcu = numProcessed / (horizontal * vertical);
+				int mcuColumns = mcuWidth / horizontal;
+				if (stream && mcu / mcuColumns != band) {
+					try {
+						readBand(mcu / mcuColumns);
+					}
+					catch (IOException e) {
+						// the later stages still expect every MCU, so the rest of the image is sent black
+						logger.error("Error - Unknown error reading file '" + header.filename + "'");
+						closeChannel();
+						clearBand();
+					}
+				}
+				for (int i = 0; i < vertical; ++i) {
+					for (int j = 0; j < horizontal; ++j) {
+						fillMCU(mcu % mcuColumns * horizontal + j, mcu / mcuColumns * vertical + i, batch.next());
+					}
+				}
+				numProcessed += horizontal * vertical;
+			}
+			if (!batch.write(output)) {
+				logger.error("BMP Scanner requesting shutdown");
+				requestShutdown();
+			}
+			if (numProcessed >= numMCUs) {
+				closeChannel();
+			}
+		}
+		// the next file waits until every MCU of this one is on the pipe
+		if (numProcessed >= numMCUs && PipeWriter.hasRoomForWrite(output) && !inputFiles.isEmpty()) {
+			String file = inputFiles.poll();
+			if (persistent && file.equals(JPG.END_OF_INPUT)) {
+				// the same empty final header that ends a list of files
+				writeInvalidHeader(file, 1);
+				// stop taking work, the rest of the queue belongs to any other scanners sharing it
+				inputFiles = new ArrayDeque<String>();
+				if (verbose) {
+					System.out.println("All input files read.");
+				}
+				timer.addAndGet(System.nanoTime() - s);
+				return;
+			}
+			if (!persistent || verbose) {
+				System.out.println(file);
+			}
 			try {
 				header = ReadBMP(file);
 				if (header == null || !header.valid) {
 					logger.error("Error - BMP file '{}' invalid",file);
-					if (inputFiles.size() > 0) {
+					// no rows will be read from a stream opened for the header
+					closeChannel();
+					if (inputFiles.size() > 0 && !persistent) {
 						return;
 					}
 					header = new Header();
@@ -318,7 +529,7 @@ public class BMPScannerStage extends PronghornStage {
 					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, header.height);
 					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, header.width);
 					PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, file);
-					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, (inputFiles.size() == 0 ? 1 : 0));
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, (inputFiles.size() == 0 && !persistent ? 1 : 0));
 					PipeWriter.publishWrites(output);
 				}
 				else {
@@ -328,8 +539,13 @@ public class BMPScannerStage extends PronghornStage {
 			}
 			catch (IOException e) {
 				logger.error("Error - Unknown error reading file '" + file + "'");
+				closeChannel();
+				if (persistent) {
+					// the client is still waiting on this file
+					writeInvalidHeader(file, 0);
+				}
 			}
-			if (inputFiles.isEmpty()) {
+			if (inputFiles.isEmpty() && !persistent) {
 				if (verbose) {
 					System.out.println("All input files read.");
 				}
@@ -338,6 +554,20 @@ public class BMPScannerStage extends PronghornStage {
 		timer.addAndGet(System.nanoTime() - s);
 	}
 	
+	private void writeInvalidHeader(String file, int last) {
+		if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_HEADERMESSAGE_1)) {
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, 0);
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, 0);
+			PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, file);
+			PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, last);
+			PipeWriter.publishWrites(output);
+		}
+		else {
+			logger.error("BMP Scanner requesting shutdown");
+			requestShutdown();
+		}
+	}
+	
 	public static AtomicLong timer = new AtomicLong(0);//NOTE: using statics like this is not recommended
 	
 	
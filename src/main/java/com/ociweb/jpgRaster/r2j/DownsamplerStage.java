@@ -0,0 +1,155 @@
+package com.ociweb.jpgRaster.r2j;
+
+import com.ociweb.jpgRaster.JPG.Header;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
+import com.ociweb.jpgRaster.JPG.MCU;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Averages the Cb and Cr values of the 2 or 4 blocks of a 4:2:2 or 4:2:0 MCU
+ * down to a single 8x8 block of each, which is left in the first block of the MCU.
+ * The chroma of the other blocks is not used after this stage.
+ * The scanner sends the blocks of an MCU left to right, top to bottom,
+ * and never splits them across two batches.
+ */
+public class DownsamplerStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(DownsamplerStage.class);
+
+	private final Pipe<JPGSchema> input;
+	private final Pipe<JPGSchema> output;
+	private boolean verbose;
+	private int horizontal;
+	private int vertical;
+
+	private Header header;
+	private MCUBatch batch;
+	private short[] tempCB;
+	private short[] tempCR;
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ JPG schema with full size Cb and Cr in every block
+	 * @param output _out_ JPG schema with the downsampled Cb and Cr in the first block of each MCU
+	 * @param verbose
+	 * @param horizontal luminance blocks across an MCU, 1 or 2
+	 * @param vertical luminance blocks down an MCU, 1 or 2
+	 */
+	public DownsamplerStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, int horizontal, int vertical) {
+		super(graphManager, input, output);
+		this.input = input;
+		this.output = output;
+		this.verbose = verbose;
+		this.horizontal = horizontal;
+		this.vertical = vertical;
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		batch = new MCUBatch(input);
+		tempCB = new short[64];
+		tempCR = new short[64];
+	}
+
+	/**
+	 * Downsamples the MCU made of the blocks starting at mcus[first].
+	 * Each chroma value becomes the rounded average of the 2x2 (4:2:0)
+	 * or 2x1 (4:2:2) values it covers.
+	 */
+	public static void downsample(MCU[] mcus, int first, int horizontal, int vertical, short[] tempCB, short[] tempCR) {
+		int rows = 8 / vertical;
+		int columns = 8 / horizontal;
+		// the average of 2 or 4 values is a shift
+		int shift = horizontal + vertical - 2;
+		int half = (1 << shift) >> 1;
+		for (int i = 0; i < 8; ++i) {
+			for (int j = 0; j < 8; ++j) {
+				// the block holding the values of this position, and the first of them
+				MCU mcu = mcus[first + (i / rows) * horizontal + j / columns];
+				int pos = (i % rows) * vertical * 8 + (j % columns) * horizontal;
+				int cb = 0;
+				int cr = 0;
+				for (int y = 0; y < vertical; ++y) {
+					for (int x = 0; x < horizontal; ++x) {
+						cb += mcu.cb[pos + y * 8 + x];
+						cr += mcu.cr[pos + y * 8 + x];
+					}
+				}
+				tempCB[i * 8 + j] = (short)((cb + half) >> shift);
+				tempCR[i * 8 + j] = (short)((cr + half) >> shift);
+			}
+		}
+		System.arraycopy(tempCB, 0, mcus[first].cb, 0, 64);
+		System.arraycopy(tempCR, 0, mcus[first].cr, 0, 64);
+	}
+
+	@Override
+	public void run() {
+		long s = System.nanoTime();
+		while (PipeWriter.hasRoomForWrite(output) && PipeReader.tryReadFragment(input)) {
+
+			int msgIdx = PipeReader.getMsgIdx(input);
+
+			if (msgIdx == JPGSchema.MSG_HEADERMESSAGE_1) {
+				// read header from pipe
+				header = new Header();
+				header.height = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101);
+				header.width = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201);
+				header.filename = PipeReader.readASCII(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, new StringBuilder()).toString();
+				int last = PipeReader.readInt(input, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401);
+				PipeReader.releaseReadLock(input);
+
+				// write header to pipe
+				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_HEADERMESSAGE_1)) {
+					if (verbose) {
+						System.out.println("Downsampler writing header to pipe...");
+					}
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_HEIGHT_101, header.height);
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_WIDTH_201, header.width);
+					PipeWriter.writeASCII(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FILENAME_301, header.filename);
+					PipeWriter.writeInt(output, JPGSchema.MSG_HEADERMESSAGE_1_FIELD_FINAL_401, last);
+					PipeWriter.publishWrites(output);
+				}
+				else {
+					logger.error("Downsampler requesting shutdown");
+					requestShutdown();
+				}
+			}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
+				PipeReader.releaseReadLock(input);
+
+				for (int i = 0; i + horizontal * vertical <= batch.count; i += horizontal * vertical) {
+					downsample(batch.mcus, i, horizontal, vertical, tempCB, tempCR);
+				}
+
+				if (!batch.write(output)) {
+					logger.error("Downsampler requesting shutdown");
+					requestShutdown();
+				}
+			}
+			else {
+				logger.error("Downsampler requesting shutdown");
+				requestShutdown();
+			}
+		}
+		timer.addAndGet(System.nanoTime() - s);
+	}
+
+	public static AtomicLong timer = new AtomicLong(0);//NOTE: using statics like this is not recommended
+
+}
@@ -8,9 +8,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.pipe.PipeWriter;
@@ -29,11 +28,16 @@ public class ForwardDCTStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	private final Pipe<JPGSchema> output;
 	private boolean verbose;
+	// use AANForwardDCT, whose output QuantizerStage has to descale
+	private boolean aan;
+	// blocks in an MCU, only the first of which carries chroma when it is downsampled
+	private int blocksPerMCU;
 
 	private Header header;
-	private MCU mcu;
+	private MCUBatch batch;
 	private double[] temp;
 	private double[] fdctMap;
+	private float[] workspace;
 
 	/**
 	 *
@@ -43,19 +47,36 @@ public class ForwardDCTStage extends PronghornStage {
 	 * @param verbose
 	 */
 	public ForwardDCTStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose) {
+		this(graphManager, input, output, verbose, false, 1, 1);
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ Input JPG schema that the Forward DCT algorithm will be applied to
+	 * @param output _out_ Output JPG schema with DCT algorithm applied
+	 * @param verbose
+	 * @param aan use the AAN transform, leaving its output scaling to a QuantizerStage made with aan set
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 */
+	public ForwardDCTStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, boolean aan, int horizontal, int vertical) {
 		super(graphManager, input, output);
 		this.input = input;
 		this.output = output;
 		this.verbose = verbose;
+		this.aan = aan;
+		this.blocksPerMCU = horizontal * vertical;
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(input);
 		temp = new double[64];
 		fdctMap = new double[64];
+		workspace = new float[64];
 		// prepare fdctMap
 		for (int u = 0; u < 8; ++u) {
 			double c = 1.0 / 2.0;
@@ -92,6 +113,10 @@ public class ForwardDCTStage extends PronghornStage {
 	}
 	
 	private void TransformBlock(short[] mcu) {
+		if (aan) {
+			AANForwardDCT.transformBlock(mcu, workspace);
+			return;
+		}
 		for (int i = 0; i < 8; ++i) {
 			TransformColumn(mcu, temp, i);
 		}
@@ -100,7 +125,7 @@ public class ForwardDCTStage extends PronghornStage {
 		}
 	}
 	
-	private void inverseDCT(MCU mcu, Header header) {
+	private void forwardDCT(MCU mcu, Header header) {
 		TransformBlock(mcu.y);
 		TransformBlock(mcu.cb);
 		TransformBlock(mcu.cr);
@@ -139,47 +164,20 @@ public class ForwardDCTStage extends PronghornStage {
 					requestShutdown();
 				}
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
-				}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 				
-				inverseDCT(mcu, header);
-				//JPG.printMCU(mcu);
-
-				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-					DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.y[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cb[i]);
+				for (int i = 0; i < batch.count; ++i) {
+					if (i % blocksPerMCU == 0) {
+						forwardDCT(batch.mcus[i], header);
 					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cr[i]);
+					else {
+						TransformBlock(batch.mcus[i].y);
 					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-					
-					PipeWriter.publishWrites(output);
 				}
-				else {
+				
+				if (!batch.write(output)) {
 					logger.error("Forward DCT requesting shutdown");
 					requestShutdown();
 				}
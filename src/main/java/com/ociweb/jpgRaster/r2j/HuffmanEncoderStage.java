@@ -2,17 +2,23 @@ package com.ociweb.jpgRaster.r2j;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPG;
+import com.ociweb.jpgRaster.JPGConstants;
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
+import com.ociweb.jpgRaster.JPG.ColorComponent;
 import com.ociweb.jpgRaster.JPG.Header;
 import com.ociweb.jpgRaster.JPG.HuffmanTable;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.jpgRaster.JPG.QuantizationTable;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.stage.PronghornStage;
@@ -26,48 +32,112 @@ public class HuffmanEncoderStage extends PronghornStage {
 	
 	private static final Logger logger = LoggerFactory.getLogger(HuffmanEncoderStage.class);
 			
-	private static class BitWriter {
-		private int nextByte = -1;
-		private int nextBit = 8;
-		public ArrayList<Byte> data = new ArrayList<Byte>();
+	/**
+	 * Collects codes in a 64-bit accumulator and moves them out a byte at a time
+	 * into a growable array, stuffing a 0x00 after every 0xFF.
+	 */
+	static class BitWriter {
+		private long bitBuffer = 0;
+		private int bitCount = 0;
+		public byte[] data = new byte[1 << 16];
+		public int length = 0;
 		
-		public void putBit(int x) {
-			if (nextBit > 7) {
-				data.add((byte) 0);
-				nextBit = 0;
-				if (data.size() > 1 && data.get(nextByte) == (byte)0xFF) {
-					data.add((byte) 0);
-					nextByte++;
+		private void flushBytes() {
+			// at most 5 whole bytes are waiting, each of which may need a stuffed byte
+			if (length + 10 > data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			while (bitCount >= 8) {
+				bitCount -= 8;
+				byte next = (byte)(bitBuffer >>> bitCount);
+				data[length++] = next;
+				if (next == (byte)0xFF) {
+					data[length++] = 0;
 				}
-				nextByte++;
 			}
-			
-			data.set(nextByte, (byte)(data.get(nextByte) | ((x & 1) << (7 - nextBit))));
-			nextBit++;
 		}
 		
 		public void putBits(int x, int length) {
-			for(int i = 0; i < length; ++i) {
-				putBit(x >> (length - 1 - i));
+			bitBuffer = (bitBuffer << length) | (x & ((1 << length) - 1));
+			bitCount += length;
+			if (bitCount >= 32) {
+				flushBytes();
 			}
 		}
 		
+		// pads the last byte with zeroes
+		public void flush() {
+			if (bitCount % 8 != 0) {
+				putBits(0, 8 - bitCount % 8);
+			}
+			flushBytes();
+		}
+		
 		public void restart() {
-			data.clear();
-			nextByte = -1;
-			nextBit = 8;
+			bitBuffer = 0;
+			bitCount = 0;
+			length = 0;
+		}
+		
+		// appends bytes that need no stuffing, such as another flushed writer's data or a marker,
+		// after the bits written so far have been flushed
+		public void putBytes(byte[] bytes, int count) {
+			if (length + count > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+			}
+			System.arraycopy(bytes, 0, data, length, count);
+			length += count;
+		}
+	}
+	
+	/**
+	 * Code and code length of every symbol of a Huffman table,
+	 * so a symbol is written with a single lookup.
+	 */
+	static class EncodeTable {
+		final int[] ehufco = new int[256];
+		// 0 for symbols that are not in the table
+		final byte[] ehufsi = new byte[256];
+		
+		public EncodeTable(HuffmanTable table) {
+			// canonical codes, counting up within a length and doubling for the next one
+			int code = 0;
+			for (int i = 0; i < 16; ++i) {
+				ArrayList<Short> symbols = table.symbols.get(i);
+				for (int j = 0; j < symbols.size(); ++j) {
+					int symbol = symbols.get(j) & 0xFF;
+					ehufco[symbol] = code;
+					ehufsi[symbol] = (byte)(i + 1);
+					++code;
+				}
+				code <<= 1;
+			}
 		}
 	}
 	
 	private final Pipe<JPGSchema> input;
 	private boolean verbose;
 	private boolean time;
+	// report each file on its own line, for clients of a persistent graph
+	private boolean persistent;
 	private long start;
-	private int quality;
+	// quantization tables written to the file, scaled once for the quality of the job
+	private QuantizationTable[] QTables;
+	// code each image with Huffman tables built from its own symbol counts
+	private boolean optimize;
+	// write the image as a series of progressive scans instead of a single baseline scan
+	private boolean progressive;
+	// MCUs between RSTn markers, 0 for none; the intervals are coded in parallel
+	private int restartInterval;
+	private ForkJoinPool pool;
+	// luminance blocks across and down an MCU, 2 when the chroma is downsampled
+	private int horizontal;
+	private int vertical;
+	private int blocksPerMCU;
 	
 	private Header header;
 	private int last = 0;
-	private MCU mcu;
+	private MCUBatch batch;
 	
 	private int count;
 	private int numMCUs;
@@ -75,6 +145,30 @@ public class HuffmanEncoderStage extends PronghornStage {
 	private short[] previousDC;
 
 	private BitWriter b;
+	
+	private EncodeTable DCTable0;
+	private EncodeTable ACTable0;
+	private EncodeTable DCTable1;
+	private EncodeTable ACTable1;
+	
+	// tables written to the file, by table ID
+	private HuffmanTable[] DCTables = { JPG.hDCTable0, JPG.hDCTable1 };
+	private HuffmanTable[] ACTables = { JPG.hACTable0, JPG.hACTable1 };
+	
+	// the quantized MCUs of the current image are kept here while their symbols are counted,
+	// Y, Cb and Cr blocks one after the other
+	private short[] coefficients;
+	private MCU bufferedMCU;
+	private long[][] DCFrequencies;
+	private long[][] ACFrequencies;
+	private ProgressiveEncoder progressiveEncoder;
+	
+	// blocks held in coefficients at a time when coding restart intervals
+	private int bufferedBlocks;
+	// the block at the start of coefficients
+	private int chunkStart;
+	// the restart interval that block begins
+	private int nextInterval;
 
 	/**
 	 *
@@ -85,11 +179,39 @@ public class HuffmanEncoderStage extends PronghornStage {
 	 * @param quality
 	 */
 	public HuffmanEncoderStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, boolean time, int quality) {
+		this(graphManager, input, verbose, time, quality, false, false, false, 0, 1, 1);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ The JPG schema on which Huffman encoding will be applied to
+	 * @param verbose
+	 * @param time
+	 * @param quality
+	 * @param persistent print the name of each JPG as it is written, or "Error: " and the BMP name if it is invalid
+	 * @param optimize hold every MCU of an image until it can be coded with tables built for that image
+	 *        instead of the example tables of the JPEG standard
+	 * @param progressive hold every MCU of an image until it can be written as progressive scans,
+	 *        which always use tables built for each scan
+	 * @param restartInterval MCUs between restart markers, up to 65535, or 0 for none.
+	 *        The intervals are coded on a fork-join pool. Not used for progressive images.
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 */
+	public HuffmanEncoderStage(GraphManager graphManager, Pipe<JPGSchema> input, boolean verbose, boolean time, int quality, boolean persistent, boolean optimize, boolean progressive, int restartInterval, int horizontal, int vertical) {
 		super(graphManager, input, NONE);
 		this.input = input;
 		this.verbose = verbose;
 		this.time = time;
-		this.quality = quality;
+		this.QTables = new QuantizationTable[] { JPG.scaledQuantizationTable(0, quality), JPG.scaledQuantizationTable(1, quality) };
+		this.persistent = persistent;
+		this.optimize = optimize;
+		this.progressive = progressive;
+		this.restartInterval = progressive ? 0 : restartInterval;
+		this.horizontal = horizontal;
+		this.vertical = vertical;
+		this.blocksPerMCU = horizontal * vertical;
 		start = System.nanoTime();
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
@@ -97,9 +219,31 @@ public class HuffmanEncoderStage extends PronghornStage {
 	
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(input);
 		previousDC = new short[3];
 		b = new BitWriter();
+		DCTable0 = new EncodeTable(JPG.hDCTable0);
+		ACTable0 = new EncodeTable(JPG.hACTable0);
+		DCTable1 = new EncodeTable(JPG.hDCTable1);
+		ACTable1 = new EncodeTable(JPG.hACTable1);
+		if (optimize) {
+			bufferedMCU = new MCU();
+			DCFrequencies = new long[2][256];
+			ACFrequencies = new long[2][256];
+		}
+		if (progressive) {
+			progressiveEncoder = new ProgressiveEncoder(horizontal, vertical);
+		}
+		if (restartInterval > 0) {
+			pool = new ForkJoinPool();
+		}
+	}
+	
+	@Override
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
 	}
 	
 	private static int bitLength(int x) {
@@ -111,11 +255,20 @@ public class HuffmanEncoderStage extends PronghornStage {
 		return len;
 	}
 
-	private boolean encodeMCUComponent(
-			  ArrayList<ArrayList<Integer>> DCTableCodes,
-			  ArrayList<ArrayList<Integer>> ACTableCodes,
-			  HuffmanTable DCTable,
-			  HuffmanTable ACTable,
+	private static boolean putSymbol(BitWriter b, EncodeTable table, int symbol) {
+		int size = table.ehufsi[symbol];
+		if (size == 0) {
+			return false;
+		}
+		b.putBits(table.ehufco[symbol], size);
+		return true;
+	}
+
+	private static boolean encodeMCUComponent(
+			  BitWriter b,
+			  short[] previousDC,
+			  EncodeTable DCTable,
+			  EncodeTable ACTable,
 			  short[] component,
 			  int compID) {
 		
@@ -130,20 +283,8 @@ public class HuffmanEncoderStage extends PronghornStage {
 		if (coeff <= 0) {
 			coeff += (1 << coeffLength) - 1;
 		}
-		boolean found = false;
-		for (int j = 0; j < 16; ++j) {
-			for (int k = 0; k < DCTable.symbols.get(j).size(); ++k) {
-				if (DCTable.symbols.get(j).get(k) == coeffLength) {
-					int code = DCTableCodes.get(j).get(k);
-					b.putBits(code, j+1);
-					b.putBits(coeff, coeffLength);
-					found = true;
-					break;
-				}
-			}
-			if (found) {
-				break;
-			}
+		if (putSymbol(b, DCTable, coeffLength)) {
+			b.putBits(coeff, coeffLength);
 		}
 		
 		// code AC values
@@ -157,34 +298,11 @@ public class HuffmanEncoderStage extends PronghornStage {
 			
 			if (i == 64) {
 				// write terminator code
-				for (int j = 0; j < 16; ++j) {
-					// find code that gives the symbol 0
-					for (int k = 0; k < ACTable.symbols.get(j).size(); ++k) {
-						if (ACTable.symbols.get(j).get(k) == 0) {
-							int code = ACTableCodes.get(j).get(k);
-							b.putBits(code, j+1);
-							return true;
-						}
-					}
-				}
-				return false; // never going to happen
+				return putSymbol(b, ACTable, 0x00);
 			}
 			
 			while (numZeroes >= 16) {
-				found = false;
-				for (int j = 0; j < 16; ++j) {
-					for (int k = 0; k < ACTable.symbols.get(j).size(); ++k) {
-						if (ACTable.symbols.get(j).get(k) == 0xF0) {
-							int code = ACTableCodes.get(j).get(k);
-							b.putBits(code, j+1);
-							found = true;
-							break;
-						}
-					}
-					if (found) {
-						break;
-					}
-				}
+				putSymbol(b, ACTable, 0xF0);
 				numZeroes -= 16;
 			}
 			
@@ -198,40 +316,179 @@ public class HuffmanEncoderStage extends PronghornStage {
 			if (coeff <= 0) {
 				coeff += (1 << coeffLength) - 1;
 			}
-			// find symbol in table
-			int symbol = numZeroes << 4 | coeffLength;
-			found = false;
-			for (int j = 0; j < 16; ++j) {
-				for (int k = 0; k < ACTable.symbols.get(j).size(); ++k) {
-					if (ACTable.symbols.get(j).get(k) == symbol) {
-						int code = ACTableCodes.get(j).get(k);
-						b.putBits(code, j+1);
-						b.putBits(coeff, coeffLength);
-						found = true;
-						break;
-					}
-				}
-				if (found) {
-					break;
-				}
+			if (putSymbol(b, ACTable, numZeroes << 4 | coeffLength)) {
+				b.putBits(coeff, coeffLength);
 			}
 		}
 		return true;
 	}
 
 
-	public void encodeHuffmanData(MCU mcu) {
-		if (!encodeMCUComponent(JPG.DCTableCodes0, JPG.ACTableCodes0, JPG.hDCTable0, JPG.hACTable0, mcu.y, 0)) {
-			logger.error("Error during Y component Huffman coding");
+	// counts the symbols encodeMCUComponent would write
+	private void countMCUComponent(long[] DCFrequency, long[] ACFrequency, short[] component, int compID) {
+		int coeff = component[0] - previousDC[compID];
+		previousDC[compID] = component[0];
+		DCFrequency[coeff == 0 ? 0 : bitLength(Math.abs(coeff))]++;
+		
+		for (int i = 1; i < 64; ++i) {
+			int numZeroes = 0;
+			while (i < 64 && component[JPG.zigZagMap[i]] == 0) {
+				++numZeroes;
+				++i;
+			}
+			if (i == 64) {
+				ACFrequency[0x00]++;
+				return;
+			}
+			while (numZeroes >= 16) {
+				ACFrequency[0xF0]++;
+				numZeroes -= 16;
+			}
+			ACFrequency[numZeroes << 4 | bitLength(Math.abs(component[JPG.zigZagMap[i]]))]++;
 		}
-		if (!encodeMCUComponent(JPG.DCTableCodes1, JPG.ACTableCodes1, JPG.hDCTable1, JPG.hACTable1, mcu.cb, 1)) {
-			logger.error("Error during Cb component Huffman coding");
+	}
+	
+	// counts the symbols of a block and keeps its coefficients for the second pass
+	private void bufferHuffmanData(MCU mcu, int index) {
+		if (restartInterval > 0 && index % (restartInterval * blocksPerMCU) == 0) {
+			previousDC[0] = 0;
+			previousDC[1] = 0;
+			previousDC[2] = 0;
 		}
-		if (!encodeMCUComponent(JPG.DCTableCodes1, JPG.ACTableCodes1, JPG.hDCTable1, JPG.hACTable1, mcu.cr, 2)) {
-			logger.error("Error during Cr component Huffman coding");
+		countMCUComponent(DCFrequencies[0], ACFrequencies[0], mcu.y, 0);
+		if (index % blocksPerMCU == 0) {
+			countMCUComponent(DCFrequencies[1], ACFrequencies[1], mcu.cb, 1);
+			countMCUComponent(DCFrequencies[1], ACFrequencies[1], mcu.cr, 2);
+		}
+		bufferBlock(mcu, index);
+	}
+	
+	private void bufferBlock(MCU mcu, int index) {
+		System.arraycopy(mcu.y, 0, coefficients, index * 192, 64);
+		System.arraycopy(mcu.cb, 0, coefficients, index * 192 + 64, 64);
+		System.arraycopy(mcu.cr, 0, coefficients, index * 192 + 128, 64);
+	}
+	
+	// builds the tables for the counted symbols and codes every MCU that was kept
+	private void encodeBufferedData() {
+		for (int i = 0; i < 2; ++i) {
+			DCTables[i] = HuffmanTableOptimizer.optimalTable(DCFrequencies[i], i);
+			ACTables[i] = HuffmanTableOptimizer.optimalTable(ACFrequencies[i], i);
+		}
+		DCTable0 = new EncodeTable(DCTables[0]);
+		ACTable0 = new EncodeTable(ACTables[0]);
+		DCTable1 = new EncodeTable(DCTables[1]);
+		ACTable1 = new EncodeTable(ACTables[1]);
+		
+		if (restartInterval > 0) {
+			encodeRestartIntervals(numMCUs);
+			return;
+		}
+		previousDC[0] = 0;
+		previousDC[1] = 0;
+		previousDC[2] = 0;
+		for (int i = 0; i < numMCUs; ++i) {
+			System.arraycopy(coefficients, i * 192, bufferedMCU.y, 0, 64);
+			if (i % blocksPerMCU == 0) {
+				System.arraycopy(coefficients, i * 192 + 64, bufferedMCU.cb, 0, 64);
+				System.arraycopy(coefficients, i * 192 + 128, bufferedMCU.cr, 0, 64);
+			}
+			encodeBlock(b, previousDC, bufferedMCU, bufferedMCU, i);
+		}
+	}
+	
+	// codes the first numBlocks blocks held in coefficients, which start at a restart interval,
+	// on the fork-join pool and appends them to the scan data
+	private void encodeRestartIntervals(int numBlocks) {
+		int blocksPerInterval = restartInterval * blocksPerMCU;
+		int numIntervals = (numBlocks + blocksPerInterval - 1) / blocksPerInterval;
+		if (numIntervals == 0) {
+			return;
+		}
+		int intervalsPerTask = Math.max(1, numIntervals / (pool.getParallelism() * 4));
+		BitWriter[] writers = new BitWriter[(numIntervals + intervalsPerTask - 1) / intervalsPerTask];
+		pool.invoke(new RestartIntervalTask(writers, numBlocks, intervalsPerTask, 0, writers.length));
+		for (int i = 0; i < writers.length; ++i) {
+			b.putBytes(writers[i].data, writers[i].length);
+		}
+		nextInterval += numIntervals;
+	}
+	
+	/**
+	 * Codes a range of tasks' worth of restart intervals, splitting it in half
+	 * until one is left, which is coded into its own writer with its own DC predictions.
+	 * Every interval but the first of the image starts with the RSTn marker ending the one before it.
+	 */
+	private class RestartIntervalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final BitWriter[] writers;
+		private final int numBlocks;
+		private final int intervalsPerTask;
+		private final int first;
+		private final int last;
+		
+		public RestartIntervalTask(BitWriter[] writers, int numBlocks, int intervalsPerTask, int first, int last) {
+			this.writers = writers;
+			this.numBlocks = numBlocks;
+			this.intervalsPerTask = intervalsPerTask;
+			this.first = first;
+			this.last = last;
+		}
+		
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				invokeAll(new RestartIntervalTask(writers, numBlocks, intervalsPerTask, first, middle),
+						  new RestartIntervalTask(writers, numBlocks, intervalsPerTask, middle, last));
+				return;
+			}
+			
+			BitWriter writer = new BitWriter();
+			short[] intervalDC = new short[3];
+			MCU mcu = new MCU();
+			int blocksPerInterval = restartInterval * blocksPerMCU;
+			int start = first * intervalsPerTask * blocksPerInterval;
+			int end = Math.min(start + intervalsPerTask * blocksPerInterval, numBlocks);
+			for (int i = start; i < end; ++i) {
+				if (i % blocksPerInterval == 0) {
+					int interval = nextInterval + i / blocksPerInterval;
+					if (interval > 0) {
+						writer.flush();
+						writer.putBytes(new byte[] { (byte)0xFF, (byte)(JPGConstants.RST0 + (interval - 1) % 8) }, 2);
+					}
+					intervalDC[0] = 0;
+					intervalDC[1] = 0;
+					intervalDC[2] = 0;
+				}
+				System.arraycopy(coefficients, i * 192, mcu.y, 0, 64);
+				if (i % blocksPerMCU == 0) {
+					System.arraycopy(coefficients, i * 192 + 64, mcu.cb, 0, 64);
+					System.arraycopy(coefficients, i * 192 + 128, mcu.cr, 0, 64);
+				}
+				encodeBlock(writer, intervalDC, mcu, mcu, i);
+			}
+			writer.flush();
+			writers[first] = writer;
+		}
+	}
+	
+	// codes the luminance of a block, and after the last block of an MCU
+	// the chroma, which is carried by the first block
+	private void encodeBlock(BitWriter b, short[] previousDC, MCU mcu, MCU first, int index) {
+		if (!encodeMCUComponent(b, previousDC, DCTable0, ACTable0, mcu.y, 0)) {
+			logger.error("Error during Y component Huffman coding");
+		}
+		if (index % blocksPerMCU == blocksPerMCU - 1) {
+			if (!encodeMCUComponent(b, previousDC, DCTable1, ACTable1, first.cb, 1)) {
+				logger.error("Error during Cb component Huffman coding");
+			}
+			if (!encodeMCUComponent(b, previousDC, DCTable1, ACTable1, first.cr, 2)) {
+				logger.error("Error during Cr component Huffman coding");
+			}
 		}
 	}
-
 
 	@Override
 	public void run() {
@@ -254,6 +511,9 @@ public class HuffmanEncoderStage extends PronghornStage {
 						timer.addAndGet(System.nanoTime() - s);
 						System.out.println("Time for BMPScanner: " + ((double)(BMPScannerStage.timer.get()) / 1000000) + " ms");
 						System.out.println("Time for RGBToYCbCr: " + ((double)(RGBToYCbCrStage.timer.get()) / 1000000) + " ms");
+						if (blocksPerMCU > 1) {
+							System.out.println("Time for Downsampler: " + ((double)(DownsamplerStage.timer.get()) / 1000000) + " ms");
+						}
 						System.out.println("Time for ForwardDCT: " + ((double)(ForwardDCTStage.timer.get()) / 1000000) + " ms");
 						System.out.println("Time for Quantizer: " + ((double)(QuantizerStage.timer.get()) / 1000000) + " ms");
 						System.out.println("Time for JPGDumper/HuffmanEncoder: " + ((double)(timer.get()) / 1000000) + " ms");
@@ -262,51 +522,106 @@ public class HuffmanEncoderStage extends PronghornStage {
 					
 					System.exit(0);
 				}
+				if (persistent && header.height == 0 && header.width == 0) {
+					System.out.println("Error: " + header.filename);
+					continue;
+				}
 				
 				count = 0;
-				numMCUs = ((header.height + 7) / 8) * ((header.width + 7) / 8);
+				// blocks in the image, padded to whole MCUs
+				numMCUs = ((header.height + 8 * vertical - 1) / (8 * vertical) * vertical) *
+						  ((header.width + 8 * horizontal - 1) / (8 * horizontal) * horizontal);
+				header.colorComponents[0] = new ColorComponent();
+				header.colorComponents[0].horizontalSamplingFactor = (short)horizontal;
+				header.colorComponents[0].verticalSamplingFactor = (short)vertical;
 				previousDC[0] = 0;
 				previousDC[1] = 0;
 				previousDC[2] = 0;
 				b.restart();
-			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
+				chunkStart = 0;
+				nextInterval = 0;
+				if (optimize || progressive) {
+					bufferedBlocks = numMCUs;
 				}
-
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
+				else if (restartInterval > 0) {
+					// a few tasks of about 4096 blocks for each thread
+					int blocksPerInterval = restartInterval * blocksPerMCU;
+					bufferedBlocks = Math.min(numMCUs, pool.getParallelism() * 4 * Math.max(1, 4096 / blocksPerInterval) * blocksPerInterval);
 				}
-
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
+				if (optimize || progressive || restartInterval > 0) {
+					if (coefficients == null || coefficients.length < bufferedBlocks * 192) {
+						coefficients = new short[bufferedBlocks * 192];
+					}
 				}
+				if (optimize) {
+					for (int i = 0; i < 2; ++i) {
+						Arrays.fill(DCFrequencies[i], 0);
+						Arrays.fill(ACFrequencies[i], 0);
+					}
+				}
+			}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 
-				encodeHuffmanData(mcu);
-				
-				count += 1;
-				if (count >= numMCUs) {
-					try {
-						JPGDumper.dumper(b.data, header, verbose, quality);
+				for (int k = 0; k < batch.count; ++k) {
+					if (progressive) {
+						bufferBlock(batch.mcus[k], count);
 					}
-					catch (IOException e) {
-						throw new RuntimeException(e);
+					else if (optimize) {
+						bufferHuffmanData(batch.mcus[k], count);
 					}
-					if (last == 1) {
-						if (time) {
-							timer.addAndGet(System.nanoTime() - s);
-							System.out.println("Time for BMPScanner: " + ((double)(BMPScannerStage.timer.get()) / 1000000) + " ms");
-							System.out.println("Time for RGBToYCbCr: " + ((double)(RGBToYCbCrStage.timer.get()) / 1000000) + " ms");
-							System.out.println("Time for ForwardDCT: " + ((double)(ForwardDCTStage.timer.get()) / 1000000) + " ms");
-							System.out.println("Time for Quantizer: " + ((double)(QuantizerStage.timer.get()) / 1000000) + " ms");
-							System.out.println("Time for JPGDumper/HuffmanEncoder: " + ((double)(timer.get()) / 1000000) + " ms");
-							System.out.println("Total time: " + ((double)(System.nanoTime() - start) / 1000000) + " ms");
+					else if (restartInterval > 0) {
+						bufferBlock(batch.mcus[k], count - chunkStart);
+						if (count + 1 - chunkStart == bufferedBlocks) {
+							encodeRestartIntervals(bufferedBlocks);
+							chunkStart = count + 1;
 						}
+					}
+					else {
+						// an MCU is never split across batches
+						encodeBlock(b, previousDC, batch.mcus[k], batch.mcus[k - k % blocksPerMCU], count);
+					}
+				
+					count += 1;
+					if (count >= numMCUs) {
+						try {
+							if (progressive) {
+								JPGDumper.dumper(header, verbose, QTables, progressiveEncoder.encode(coefficients, header.width, header.height));
+							}
+							else {
+								if (optimize) {
+									encodeBufferedData();
+								}
+								else if (restartInterval > 0) {
+									encodeRestartIntervals(count - chunkStart);
+								}
+								b.flush();
+								JPGDumper.dumper(b.data, b.length, header, verbose, QTables, DCTables, ACTables, restartInterval);
+							}
+						}
+						catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						if (persistent) {
+							System.out.println(header.filename);
+						}
+						if (last == 1) {
+							if (time) {
+								timer.addAndGet(System.nanoTime() - s);
+								System.out.println("Time for BMPScanner: " + ((double)(BMPScannerStage.timer.get()) / 1000000) + " ms");
+								System.out.println("Time for RGBToYCbCr: " + ((double)(RGBToYCbCrStage.timer.get()) / 1000000) + " ms");
+								if (blocksPerMCU > 1) {
+									System.out.println("Time for Downsampler: " + ((double)(DownsamplerStage.timer.get()) / 1000000) + " ms");
+								}
+								System.out.println("Time for ForwardDCT: " + ((double)(ForwardDCTStage.timer.get()) / 1000000) + " ms");
+								System.out.println("Time for Quantizer: " + ((double)(QuantizerStage.timer.get()) / 1000000) + " ms");
+								System.out.println("Time for JPGDumper/HuffmanEncoder: " + ((double)(timer.get()) / 1000000) + " ms");
+								System.out.println("Total time: " + ((double)(System.nanoTime() - start) / 1000000) + " ms");
+							}
 						
-						System.exit(0);
+							System.exit(0);
+						}
 					}
 				}
 			}
@@ -0,0 +1,128 @@
+package com.ociweb.jpgRaster.r2j;
+
+import java.util.ArrayList;
+
+import com.ociweb.jpgRaster.JPG.HuffmanTable;
+
+/**
+ * Builds the Huffman table that codes a given set of symbol counts in the fewest bits,
+ * with no code longer than 16 bits and no code made only of 1 bits, following
+ * section K.2 of the JPEG standard.
+ */
+public class HuffmanTableOptimizer {
+
+	// longest code the construction can reach before the lengths are limited
+	private static final int MAX_CLEN = 32;
+
+	/**
+	 * @param frequencies number of times each of the 256 symbols is coded
+	 * @param tableID
+	 * @return a table holding every symbol with a count above zero
+	 */
+	public static HuffmanTable optimalTable(long[] frequencies, int tableID) {
+		// symbol 256 reserves the code of all 1 bits, which is then taken away again
+		long[] freq = new long[257];
+		System.arraycopy(frequencies, 0, freq, 0, 256);
+		freq[256] = 1;
+		int[] codesize = new int[257];
+		int[] others = new int[257];
+		for (int i = 0; i < 257; ++i) {
+			others[i] = -1;
+		}
+
+		// join the two least frequent trees until one is left,
+		// taking the larger symbol when counts are equal
+		while (true) {
+			int c1 = -1;
+			long v = Long.MAX_VALUE;
+			for (int i = 0; i <= 256; ++i) {
+				if (freq[i] != 0 && freq[i] <= v) {
+					v = freq[i];
+					c1 = i;
+				}
+			}
+			int c2 = -1;
+			v = Long.MAX_VALUE;
+			for (int i = 0; i <= 256; ++i) {
+				if (freq[i] != 0 && freq[i] <= v && i != c1) {
+					v = freq[i];
+					c2 = i;
+				}
+			}
+			if (c2 < 0) {
+				break;
+			}
+
+			freq[c1] += freq[c2];
+			freq[c2] = 0;
+			codesize[c1]++;
+			while (others[c1] >= 0) {
+				c1 = others[c1];
+				codesize[c1]++;
+			}
+			others[c1] = c2;
+			codesize[c2]++;
+			while (others[c2] >= 0) {
+				c2 = others[c2];
+				codesize[c2]++;
+			}
+		}
+
+		int[] bits = new int[MAX_CLEN + 1];
+		for (int i = 0; i <= 256; ++i) {
+			if (codesize[i] != 0) {
+				bits[codesize[i]]++;
+			}
+		}
+
+		// move pairs of codes that are too long up the tree, one level under a shorter code
+		for (int i = MAX_CLEN; i > 16; --i) {
+			while (bits[i] > 0) {
+				int j = i - 2;
+				while (bits[j] == 0) {
+					--j;
+				}
+				bits[i] -= 2;
+				bits[i - 1]++;
+				bits[j + 1] += 2;
+				bits[j]--;
+			}
+		}
+
+		// drop the reserved code, which is one of the longest
+		int i = 16;
+		while (bits[i] == 0) {
+			--i;
+		}
+		bits[i]--;
+
+		// symbols are listed by code length, and by count within a length, so when
+		// codes were shortened above the more frequent symbols still get the shorter codes
+		int[] symbols = new int[256];
+		int count = 0;
+		for (i = 1; i <= MAX_CLEN; ++i) {
+			int first = count;
+			for (int j = 0; j < 256; ++j) {
+				if (codesize[j] == i) {
+					int k = count++;
+					while (k > first && frequencies[symbols[k - 1]] < frequencies[j]) {
+						symbols[k] = symbols[k - 1];
+						--k;
+					}
+					symbols[k] = j;
+				}
+			}
+		}
+
+		HuffmanTable table = new HuffmanTable();
+		table.tableID = (short)tableID;
+		int pos = 0;
+		for (i = 0; i < 16; ++i) {
+			table.symbols.add(new ArrayList<Short>());
+			for (int j = 0; j < bits[i + 1]; ++j, ++pos) {
+				table.symbols.get(i).add((short)symbols[pos]);
+			}
+		}
+		return table;
+	}
+}
@@ -2,8 +2,10 @@ package com.ociweb.jpgRaster.r2j;
 
 import com.ociweb.jpgRaster.JPG;
 import com.ociweb.jpgRaster.JPG.Header;
+import com.ociweb.jpgRaster.JPG.HuffmanTable;
 import com.ociweb.jpgRaster.JPG.QuantizationTable;
 import com.ociweb.jpgRaster.JPGConstants;
+import com.ociweb.jpgRaster.r2j.ProgressiveEncoder.Scan;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -13,27 +15,56 @@ import java.util.ArrayList;
 
 public class JPGDumper {
 
-	public static void dumper(ArrayList<Byte> data, Header header, boolean verbose, int quality) throws IOException {
-		int extension = header.filename.lastIndexOf('.');
-		if (extension == -1) {
-			header.filename += ".jpg";
-		}
-		else {
-			header.filename = header.filename.substring(0, extension) + ".jpg";
-		}
-		
-		if (verbose) {
-			System.out.println("Writing to '" + header.filename + "'...");
-		}
+	/**
+	 * Writes a baseline JPG around already Huffman coded scan data.
+	 * @param data the entropy-coded segment, stuffed and padded to a whole byte
+	 * @param length number of bytes of data to write
+	 * @param quality from 1 to 100, picks the quantization tables written to the file
+	 */
+	public static void dumper(byte[] data, int length, Header header, boolean verbose, int quality) throws IOException {
+		dumper(data, length, header, verbose,
+			   new QuantizationTable[] { JPG.scaledQuantizationTable(0, quality), JPG.scaledQuantizationTable(1, quality) },
+			   new HuffmanTable[] { JPG.hDCTable0, JPG.hDCTable1 },
+			   new HuffmanTable[] { JPG.hACTable0, JPG.hACTable1 });
+	}
+	
+	/**
+	 * Writes a baseline JPG around already Huffman coded scan data.
+	 * @param data the entropy-coded segment, stuffed and padded to a whole byte
+	 * @param length number of bytes of data to write
+	 * @param QTables the luminance and chrominance tables the data was quantized with
+	 * @param DCTables the luminance and chrominance DC tables the data was coded with
+	 * @param ACTables the luminance and chrominance AC tables the data was coded with
+	 */
+	public static void dumper(byte[] data, int length, Header header, boolean verbose, QuantizationTable[] QTables,
+							  HuffmanTable[] DCTables, HuffmanTable[] ACTables) throws IOException {
+		dumper(data, length, header, verbose, QTables, DCTables, ACTables, 0);
+	}
+	
+	/**
+	 * Writes a baseline JPG around already Huffman coded scan data.
+	 * @param data the entropy-coded segment, stuffed and padded to a whole byte,
+	 *        with an RSTn marker after every restart interval but the last
+	 * @param length number of bytes of data to write
+	 * @param QTables the luminance and chrominance tables the data was quantized with
+	 * @param DCTables the luminance and chrominance DC tables the data was coded with
+	 * @param ACTables the luminance and chrominance AC tables the data was coded with
+	 * @param restartInterval MCUs between RSTn markers in the data, 0 for none
+	 */
+	public static void dumper(byte[] data, int length, Header header, boolean verbose, QuantizationTable[] QTables,
+							  HuffmanTable[] DCTables, HuffmanTable[] ACTables, int restartInterval) throws IOException {
+		renameToJPG(header, verbose);
 		
 		FileOutputStream fileStream = new FileOutputStream(header.filename);
 		FileChannel file = fileStream.getChannel();
-		int size = 277; // 2 + 18 + 69 + 69 + 19 + 21 + 21 + 21 + 21 + 14 + 2
-		size += JPG.hDCTable0Symbols.length;
-		size += JPG.hDCTable1Symbols.length;
-		size += JPG.hACTable0Symbols.length;
-		size += JPG.hACTable1Symbols.length;
-		size += data.size();
+		int size = 275; // 2 + 18 + 69 + 69 + 19 + 21 + 21 + 21 + 21 + 14
+		if (restartInterval > 0) {
+			size += 6;
+		}
+		for (int i = 0; i < 2; ++i) {
+			size += numSymbols(DCTables[i]);
+			size += numSymbols(ACTables[i]);
+		}
 		ByteBuffer buffer = ByteBuffer.allocate(size);
 		
 		// start of image
@@ -44,43 +75,98 @@ public class JPGDumper {
 		WriteAPP0(buffer);
 		
 		// write quantization tables
-		if (quality == 50) {
-			WriteQuantizationTable(buffer, JPG.qTable0_50);
-			WriteQuantizationTable(buffer, JPG.qTable1_50);
-		}
-		else if (quality == 75) {
-			WriteQuantizationTable(buffer, JPG.qTable0_75);
-			WriteQuantizationTable(buffer, JPG.qTable1_75);
-		}
-		else {
-			WriteQuantizationTable(buffer, JPG.qTable0_100);
-			WriteQuantizationTable(buffer, JPG.qTable1_100);
-		}
+		WriteQuantizationTable(buffer, QTables[0]);
+		WriteQuantizationTable(buffer, QTables[1]);
 		
 		// write start of frame
-		WriteStartOfFrame(buffer, header);
+		WriteStartOfFrame(buffer, header, JPGConstants.SOF0);
 		
 		// write huffman tables
-		WriteHuffmanTable(buffer, JPG.hDCTable0Lengths, JPG.hDCTable0Symbols, 0, 0);
-		WriteHuffmanTable(buffer, JPG.hDCTable1Lengths, JPG.hDCTable1Symbols, 0, 1);
-		WriteHuffmanTable(buffer, JPG.hACTable0Lengths, JPG.hACTable0Symbols, 1, 0);
-		WriteHuffmanTable(buffer, JPG.hACTable1Lengths, JPG.hACTable1Symbols, 1, 1);
+		WriteHuffmanTable(buffer, DCTables[0], 0, 0);
+		WriteHuffmanTable(buffer, DCTables[1], 0, 1);
+		WriteHuffmanTable(buffer, ACTables[0], 1, 0);
+		WriteHuffmanTable(buffer, ACTables[1], 1, 1);
+		
+		// write restart interval
+		if (restartInterval > 0) {
+			WriteRestartInterval(buffer, restartInterval);
+		}
 		
 		// write start of scan
 		WriteStartOfScan(buffer);
 
-		// write huffman coded data
-		for (int i = 0; i < data.size(); ++i) {
-			buffer.put((byte)data.get(i));
-		}
+		buffer.flip();
 		
 		// end of image
-		buffer.put((byte)0xFF);
-		buffer.put((byte)JPGConstants.EOI);
+		ByteBuffer end = ByteBuffer.allocate(2);
+		end.put((byte)0xFF);
+		end.put((byte)JPGConstants.EOI);
+		end.flip();
+		
+		// the huffman coded data is written straight from the encoder's array
+		ByteBuffer[] buffers = { buffer, ByteBuffer.wrap(data, 0, length), end };
+		while(end.hasRemaining()) {
+			file.write(buffers);
+		}
+		file.close();
+		fileStream.close();
+
+		if (verbose) {
+			System.out.println("Done.");
+		}
+	}
+	
+	/**
+	 * Writes a progressive JPG, each scan with the Huffman tables it was coded with.
+	 * @param QTables the luminance and chrominance tables the data was quantized with
+	 * @param scans the coded scans, in the order they are to be decoded
+	 */
+	public static void dumper(Header header, boolean verbose, QuantizationTable[] QTables, ArrayList<Scan> scans) throws IOException {
+		renameToJPG(header, verbose);
 		
+		FileOutputStream fileStream = new FileOutputStream(header.filename);
+		FileChannel file = fileStream.getChannel();
+		
+		ByteBuffer[] buffers = new ByteBuffer[2 + 2 * scans.size()];
+		ByteBuffer buffer = ByteBuffer.allocate(177); // 2 + 18 + 69 + 69 + 19
+		buffer.put((byte)0xFF);
+		buffer.put((byte)JPGConstants.SOI);
+		WriteAPP0(buffer);
+		WriteQuantizationTable(buffer, QTables[0]);
+		WriteQuantizationTable(buffer, QTables[1]);
+		WriteStartOfFrame(buffer, header, JPGConstants.SOF2);
 		buffer.flip();
-		while(buffer.hasRemaining()) {
-			file.write(buffer);
+		buffers[0] = buffer;
+		
+		for (int i = 0; i < scans.size(); ++i) {
+			Scan scan = scans.get(i);
+			int size = 8 + 2 * scan.components.length;
+			for (int j = 0; j < 2; ++j) {
+				if (scan.tables[j] != null) {
+					size += 21 + numSymbols(scan.tables[j]);
+				}
+			}
+			buffer = ByteBuffer.allocate(size);
+			// the tables of a scan go right before it, replacing those of the scans before
+			for (int j = 0; j < 2; ++j) {
+				if (scan.tables[j] != null) {
+					WriteHuffmanTable(buffer, scan.tables[j], scan.Ss == 0 ? 0 : 1, j);
+				}
+			}
+			WriteStartOfScan(buffer, scan);
+			buffer.flip();
+			buffers[1 + 2 * i] = buffer;
+			buffers[2 + 2 * i] = ByteBuffer.wrap(scan.data, 0, scan.length);
+		}
+		
+		ByteBuffer end = ByteBuffer.allocate(2);
+		end.put((byte)0xFF);
+		end.put((byte)JPGConstants.EOI);
+		end.flip();
+		buffers[buffers.length - 1] = end;
+		
+		while(end.hasRemaining()) {
+			file.write(buffers);
 		}
 		file.close();
 		fileStream.close();
@@ -90,6 +176,20 @@ public class JPGDumper {
 		}
 	}
 	
+	private static void renameToJPG(Header header, boolean verbose) {
+		int extension = header.filename.lastIndexOf('.');
+		if (extension == -1) {
+			header.filename += ".jpg";
+		}
+		else {
+			header.filename = header.filename.substring(0, extension) + ".jpg";
+		}
+		
+		if (verbose) {
+			System.out.println("Writing to '" + header.filename + "'...");
+		}
+	}
+	
 	private static void WriteAPP0(ByteBuffer buffer) {
 		buffer.put((byte)0xFF);
 		buffer.put((byte)JPGConstants.APP0);
@@ -118,34 +218,56 @@ public class JPGDumper {
 		}
 	}
 	
-	private static void WriteStartOfFrame(ByteBuffer buffer, Header header) {
+	private static void WriteStartOfFrame(ByteBuffer buffer, Header header, int marker) {
 		buffer.put((byte)0xFF);
-		buffer.put((byte)JPGConstants.SOF0);
+		buffer.put((byte)marker);
 		buffer.putShort((short)17);
 		buffer.put((byte)8);
 		buffer.putShort((short)header.height);
 		buffer.putShort((short)header.width);
 		buffer.put((byte)3);
+		// only the luminance can have more than one block in an MCU
+		int sampling = 0x11;
+		if (header.colorComponents[0] != null) {
+			sampling = header.colorComponents[0].horizontalSamplingFactor << 4 | header.colorComponents[0].verticalSamplingFactor;
+		}
 		for (int i = 1; i <= 3; ++i) {
 			buffer.put((byte)i);
-			buffer.put((byte)0x11);
+			buffer.put((byte)( i == 1 ? sampling : 0x11));
 			buffer.put((byte)( i == 1 ? 0 : 1));
 		}
 	}
 
-	private static void WriteHuffmanTable(ByteBuffer buffer, short[] lengths, short[] symbols, int acdc, int id) {
+	private static int numSymbols(HuffmanTable table) {
+		int count = 0;
+		for (int i = 0; i < 16; ++i) {
+			count += table.symbols.get(i).size();
+		}
+		return count;
+	}
+
+	private static void WriteHuffmanTable(ByteBuffer buffer, HuffmanTable table, int acdc, int id) {
 		buffer.put((byte)0xFF);
 		buffer.put((byte)JPGConstants.DHT);
-		buffer.putShort((short)(19 + symbols.length));
+		buffer.putShort((short)(19 + numSymbols(table)));
 		buffer.put((byte)(acdc << 4 | id));
-		for (int i = 0; i < lengths.length; ++i) {
-			buffer.put((byte)lengths[i]);
+		for (int i = 0; i < 16; ++i) {
+			buffer.put((byte)table.symbols.get(i).size());
 		}
-		for (int i = 0; i < symbols.length; ++i) {
-			buffer.put((byte)symbols[i]);
+		for (int i = 0; i < 16; ++i) {
+			for (int j = 0; j < table.symbols.get(i).size(); ++j) {
+				buffer.put((byte)(short)table.symbols.get(i).get(j));
+			}
 		}
 	}
 	
+	private static void WriteRestartInterval(ByteBuffer buffer, int restartInterval) {
+		buffer.put((byte)0xFF);
+		buffer.put((byte)JPGConstants.DRI);
+		buffer.putShort((short)4);
+		buffer.putShort((short)restartInterval);
+	}
+	
 	private static void WriteStartOfScan(ByteBuffer buffer) {
 		buffer.put((byte)0xFF);
 		buffer.put((byte)JPGConstants.SOS);
@@ -160,15 +282,32 @@ public class JPGDumper {
 		buffer.put((byte)0);
 	}
 	
+	private static void WriteStartOfScan(ByteBuffer buffer, Scan scan) {
+		buffer.put((byte)0xFF);
+		buffer.put((byte)JPGConstants.SOS);
+		buffer.putShort((short)(6 + 2 * scan.components.length));
+		buffer.put((byte)scan.components.length);
+		for (int i = 0; i < scan.components.length; ++i) {
+			int tableID = ProgressiveEncoder.tableID(scan.components[i]);
+			buffer.put((byte)(scan.components[i] + 1));
+			// DC scans only use DC tables and AC scans only AC tables
+			buffer.put((byte)(scan.Ss == 0 ? tableID << 4 : tableID));
+		}
+		buffer.put((byte)scan.Ss);
+		buffer.put((byte)scan.Se);
+		buffer.put((byte)(scan.Ah << 4 | scan.Al));
+	}
+	
 	public static void main(String[] args) throws IOException {
-		ArrayList<Byte> data = new ArrayList<Byte>();
-		data.add((byte)0b1110_1111);   // Y DC code: 1110
-		data.add((byte)0b10_1010_00);  // Y DC coeff: 111110, Y DC terminator: 1010
-		data.add((byte)0b00_00_00_00); // Cb/Cr DC/AC terminator: 00 x4 (two unused bits)
+		byte[] data = {
+			(byte)0b1110_1111,   // Y DC code: 1110
+			(byte)0b10_1010_00,  // Y DC coeff: 111110, Y DC terminator: 1010
+			(byte)0b00_00_00_00  // Cb/Cr DC/AC terminator: 00 x4 (two unused bits)
+		};
 		Header header = new Header();
 		header.height = 8;
 		header.width = 8;
 		header.filename = "simple_test.jpg";
-		dumper(data, header, true, 50);
+		dumper(data, data.length, header, true, 50);
 	}
 }
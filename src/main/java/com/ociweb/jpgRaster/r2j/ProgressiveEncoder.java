@@ -0,0 +1,360 @@
+package com.ociweb.jpgRaster.r2j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.ociweb.jpgRaster.JPG;
+import com.ociweb.jpgRaster.JPG.HuffmanTable;
+import com.ociweb.jpgRaster.r2j.HuffmanEncoderStage.BitWriter;
+import com.ociweb.jpgRaster.r2j.HuffmanEncoderStage.EncodeTable;
+
+/**
+ * Codes the quantized blocks of a whole image as a series of progressive scans,
+ * the DC values first and then bands of the AC values, each at reduced precision
+ * and then refined a bit at a time, as in section G.1 of the JPEG standard.
+ * This follows the scan script and coding of the IJG jcphuff.c, found here:
+ * <a href="https://github.com/libjpeg-turbo/libjpeg-turbo/blob/main/src/jcphuff.c">jcphuff.c</a>
+ *
+ * Every scan is coded twice, once to count its symbols and once with the
+ * Huffman tables built from those counts, since the end of band runs
+ * are not in the example tables of the standard.
+ */
+public class ProgressiveEncoder {
+
+	/**
+	 * One scan of the script, and once coded, its tables and entropy-coded data.
+	 */
+	public static class Scan {
+		// 0 for Y, 1 for Cb and 2 for Cr
+		public final int[] components;
+		// first and last coefficient of the band, in zig zag order
+		public final int Ss;
+		public final int Se;
+		// bit position of the previous scan of this band, 0 for the first one
+		public final int Ah;
+		// bit position this scan codes down to
+		public final int Al;
+		// luminance and chrominance tables, by table ID, null if not used
+		public final HuffmanTable[] tables = new HuffmanTable[2];
+		public byte[] data;
+		public int length;
+
+		public Scan(int[] components, int Ss, int Se, int Ah, int Al) {
+			this.components = components;
+			this.Ss = Ss;
+			this.Se = Se;
+			this.Ah = Ah;
+			this.Al = Al;
+		}
+	}
+
+	// the longest end of band run one symbol can code
+	private static final int MAX_EOBRUN = 0x7FFF;
+	// correction bits held back while an end of band run is open
+	private static final int MAX_CORR_BITS = 1000;
+
+	private int horizontal;
+	private int vertical;
+	private int blocksPerMCU;
+
+	// blocks across and down the image for the luminance and for the chrominance
+	private int lumaColumns;
+	private int lumaRows;
+	private int mcuColumns;
+	private int mcuRows;
+
+	private short[] coefficients;
+	private Scan scan;
+
+	// counting symbols instead of writing them
+	private boolean gather;
+	private long[][] frequencies = new long[2][256];
+	private EncodeTable[] tables = new EncodeTable[2];
+	private BitWriter b;
+
+	private int[] lastDC = new int[3];
+	private int EOBRUN;
+	// correction bits waiting for the end of band run to be written
+	private byte[] correctionBits = new byte[MAX_CORR_BITS];
+	private int BE;
+	private int[] absValues = new int[64];
+
+	/**
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 */
+	public ProgressiveEncoder(int horizontal, int vertical) {
+		this.horizontal = horizontal;
+		this.vertical = vertical;
+		this.blocksPerMCU = horizontal * vertical;
+	}
+
+	/**
+	 * The simple progression of the IJG library for color images: DC at half precision,
+	 * the low luminance frequencies, the chrominance, the rest of the luminance,
+	 * and then the last bit of everything.
+	 */
+	public static ArrayList<Scan> simpleProgression() {
+		ArrayList<Scan> scans = new ArrayList<Scan>();
+		scans.add(new Scan(new int[] { 0, 1, 2 }, 0, 0, 0, 1));
+		scans.add(new Scan(new int[] { 0 }, 1, 5, 0, 2));
+		scans.add(new Scan(new int[] { 2 }, 1, 63, 0, 1));
+		scans.add(new Scan(new int[] { 1 }, 1, 63, 0, 1));
+		scans.add(new Scan(new int[] { 0 }, 6, 63, 0, 2));
+		scans.add(new Scan(new int[] { 0 }, 1, 63, 2, 1));
+		scans.add(new Scan(new int[] { 0, 1, 2 }, 0, 0, 1, 0));
+		scans.add(new Scan(new int[] { 2 }, 1, 63, 1, 0));
+		scans.add(new Scan(new int[] { 1 }, 1, 63, 1, 0));
+		scans.add(new Scan(new int[] { 0 }, 1, 63, 1, 0));
+		return scans;
+	}
+
+	/**
+	 * Codes every scan of the simple progression.
+	 * @param coefficients the quantized blocks in the order the scanner sends them,
+	 *        Y, Cb and Cr of each block one after the other, with the chroma
+	 *        of an MCU in its first block
+	 * @param width of the image in pixels
+	 * @param height of the image in pixels
+	 * @return the scans, in the order they are written to the file
+	 */
+	public ArrayList<Scan> encode(short[] coefficients, int width, int height) {
+		this.coefficients = coefficients;
+		lumaColumns = (width + 7) / 8;
+		lumaRows = (height + 7) / 8;
+		mcuColumns = (width + 8 * horizontal - 1) / (8 * horizontal);
+		mcuRows = (height + 8 * vertical - 1) / (8 * vertical);
+
+		ArrayList<Scan> scans = simpleProgression();
+		for (int i = 0; i < scans.size(); ++i) {
+			scan = scans.get(i);
+			// DC refinement bits are written as they are, with no Huffman coding
+			if (scan.Ss != 0 || scan.Ah == 0) {
+				Arrays.fill(frequencies[0], 0);
+				Arrays.fill(frequencies[1], 0);
+				gather = true;
+				encodeScan();
+				for (int j = 0; j < 2; ++j) {
+					if (usesTable(j)) {
+						scan.tables[j] = HuffmanTableOptimizer.optimalTable(frequencies[j], j);
+						tables[j] = new EncodeTable(scan.tables[j]);
+					}
+				}
+			}
+			gather = false;
+			b = new BitWriter();
+			encodeScan();
+			b.flush();
+			scan.data = b.data;
+			scan.length = b.length;
+		}
+		b = null;
+		this.coefficients = null;
+		return scans;
+	}
+
+	private boolean usesTable(int tableID) {
+		for (int i = 0; i < scan.components.length; ++i) {
+			if (tableID(scan.components[i]) == tableID) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static int tableID(int component) {
+		return component == 0 ? 0 : 1;
+	}
+
+	// where the block of a component at a block column and row starts in coefficients
+	private int blockOffset(int component, int column, int row) {
+		if (component == 0) {
+			int mcu = (row / vertical) * mcuColumns + column / horizontal;
+			int block = mcu * blocksPerMCU + (row % vertical) * horizontal + column % horizontal;
+			return block * 192;
+		}
+		return (row * mcuColumns + column) * blocksPerMCU * 192 + component * 64;
+	}
+
+	private void encodeScan() {
+		lastDC[0] = 0;
+		lastDC[1] = 0;
+		lastDC[2] = 0;
+		EOBRUN = 0;
+		BE = 0;
+
+		if (scan.components.length > 1) {
+			// interleaved, an MCU at a time: its luminance blocks, then Cb and Cr
+			for (int row = 0; row < mcuRows; ++row) {
+				for (int column = 0; column < mcuColumns; ++column) {
+					for (int y = 0; y < vertical; ++y) {
+						for (int x = 0; x < horizontal; ++x) {
+							encodeDC(blockOffset(0, column * horizontal + x, row * vertical + y), 0);
+						}
+					}
+					encodeDC(blockOffset(1, column, row), 1);
+					encodeDC(blockOffset(2, column, row), 2);
+				}
+			}
+		}
+		else {
+			// a single component covers only the blocks inside the image, left to right, top to bottom
+			int component = scan.components[0];
+			int columns = component == 0 ? lumaColumns : mcuColumns;
+			int rows = component == 0 ? lumaRows : mcuRows;
+			for (int row = 0; row < rows; ++row) {
+				for (int column = 0; column < columns; ++column) {
+					int offset = blockOffset(component, column, row);
+					if (scan.Ss == 0) {
+						encodeDC(offset, component);
+					}
+					else if (scan.Ah == 0) {
+						encodeACFirst(offset, tableID(component));
+					}
+					else {
+						encodeACRefine(offset, tableID(component));
+					}
+				}
+			}
+		}
+		emitEOBRun(tableID(scan.components[0]));
+	}
+
+	private static int bitLength(int x) {
+		int len = 0;
+		while (x > 0) {
+			x >>= 1;
+			++len;
+		}
+		return len;
+	}
+
+	private void putSymbol(int tableID, int symbol) {
+		if (gather) {
+			frequencies[tableID][symbol]++;
+		}
+		else {
+			b.putBits(tables[tableID].ehufco[symbol], tables[tableID].ehufsi[symbol]);
+		}
+	}
+
+	private void putBits(int x, int length) {
+		if (!gather && length > 0) {
+			b.putBits(x, length);
+		}
+	}
+
+	private void putCorrectionBits(int start, int count) {
+		for (int i = start; i < start + count; ++i) {
+			putBits(correctionBits[i], 1);
+		}
+	}
+
+	// writes the open end of band run, then the correction bits of its blocks
+	private void emitEOBRun(int tableID) {
+		if (EOBRUN > 0) {
+			int length = bitLength(EOBRUN) - 1;
+			putSymbol(tableID, length << 4);
+			putBits(EOBRUN, length);
+			EOBRUN = 0;
+			putCorrectionBits(0, BE);
+			BE = 0;
+		}
+	}
+
+	private void encodeDC(int offset, int component) {
+		if (scan.Ah != 0) {
+			// refinement, the next bit down
+			putBits((coefficients[offset] >> scan.Al) & 1, 1);
+			return;
+		}
+		int value = coefficients[offset] >> scan.Al;
+		int coeff = value - lastDC[component];
+		lastDC[component] = value;
+		int coeffLength = coeff == 0 ? 0 : bitLength(Math.abs(coeff));
+		if (coeff < 0) {
+			coeff += (1 << coeffLength) - 1;
+		}
+		putSymbol(tableID(component), coeffLength);
+		putBits(coeff, coeffLength);
+	}
+
+	private void encodeACFirst(int offset, int tableID) {
+		int numZeroes = 0;
+		for (int k = scan.Ss; k <= scan.Se; ++k) {
+			int coeff = coefficients[offset + JPG.zigZagMap[k]];
+			// the magnitude is shifted, so values round toward zero
+			int magnitude = Math.abs(coeff) >> scan.Al;
+			if (magnitude == 0) {
+				++numZeroes;
+				continue;
+			}
+			emitEOBRun(tableID);
+			while (numZeroes > 15) {
+				putSymbol(tableID, 0xF0);
+				numZeroes -= 16;
+			}
+			int coeffLength = bitLength(magnitude);
+			putSymbol(tableID, numZeroes << 4 | coeffLength);
+			putBits(coeff < 0 ? ~magnitude : magnitude, coeffLength);
+			numZeroes = 0;
+		}
+		if (numZeroes > 0) {
+			++EOBRUN;
+			if (EOBRUN == MAX_EOBRUN) {
+				emitEOBRun(tableID);
+			}
+		}
+	}
+
+	private void encodeACRefine(int offset, int tableID) {
+		// the last coefficient that becomes nonzero in this scan,
+		// after which runs of zeroes need not be broken up
+		int EOB = 0;
+		for (int k = scan.Ss; k <= scan.Se; ++k) {
+			absValues[k] = Math.abs(coefficients[offset + JPG.zigZagMap[k]]) >> scan.Al;
+			if (absValues[k] == 1) {
+				EOB = k;
+			}
+		}
+
+		int numZeroes = 0;
+		// the correction bits of this block go after any still waiting for the run
+		int start = BE;
+		int count = 0;
+		for (int k = scan.Ss; k <= scan.Se; ++k) {
+			int magnitude = absValues[k];
+			if (magnitude == 0) {
+				++numZeroes;
+				continue;
+			}
+			while (numZeroes > 15 && k <= EOB) {
+				emitEOBRun(tableID);
+				putSymbol(tableID, 0xF0);
+				numZeroes -= 16;
+				putCorrectionBits(start, count);
+				start = 0;
+				count = 0;
+			}
+			if (magnitude > 1) {
+				// already nonzero, only its next bit is sent
+				correctionBits[start + count++] = (byte)(magnitude & 1);
+				continue;
+			}
+			emitEOBRun(tableID);
+			putSymbol(tableID, numZeroes << 4 | 1);
+			putBits(coefficients[offset + JPG.zigZagMap[k]] < 0 ? 0 : 1, 1);
+			putCorrectionBits(start, count);
+			start = 0;
+			count = 0;
+			numZeroes = 0;
+		}
+		if (numZeroes > 0 || count > 0) {
+			++EOBRUN;
+			BE += count;
+			if (EOBRUN == MAX_EOBRUN || BE > MAX_CORR_BITS - 63) {
+				emitEOBRun(tableID);
+			}
+		}
+	}
+}
@@ -9,12 +9,11 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.jpgRaster.JPG;
 import com.ociweb.jpgRaster.JPGSchema;
+import com.ociweb.jpgRaster.MCUBatch;
 import com.ociweb.jpgRaster.JPG.QuantizationTable;
 import com.ociweb.jpgRaster.JPG.MCU;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
-import com.ociweb.pronghorn.pipe.DataInputBlobReader;
 import com.ociweb.pronghorn.pipe.PipeWriter;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
@@ -32,10 +31,14 @@ public class QuantizerStage extends PronghornStage {
 	private final Pipe<JPGSchema> input;
 	private final Pipe<JPGSchema> output;
 	private boolean verbose;
-	private int quality;
+	// blocks in an MCU, only the first of which carries chroma when it is downsampled
+	private int blocksPerMCU;
+	// per coefficient multipliers that stand in for dividing by the luminance and chrominance tables
+	private final long[] lumReciprocals;
+	private final long[] chromReciprocals;
 	
 	private Header header;
-	private MCU mcu;
+	private MCUBatch batch;
 
 	/**
 	 *
@@ -46,43 +49,88 @@ public class QuantizerStage extends PronghornStage {
 	 * @param quality
 	 */
 	public QuantizerStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, int quality) {
+		this(graphManager, input, output, verbose, quality, false, 1, 1);
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param input _in_ The JPG schema on which quantization will be applied to
+	 * @param output _out_ JPG schema with applied quantization
+	 * @param verbose
+	 * @param quality
+	 * @param aan the input comes from AANForwardDCT, so its scaling is divided out with the tables
+	 * @param horizontal luminance blocks across an MCU, 2 for 4:2:2 and 4:2:0
+	 * @param vertical luminance blocks down an MCU, 2 for 4:2:0
+	 */
+	public QuantizerStage(GraphManager graphManager, Pipe<JPGSchema> input, Pipe<JPGSchema> output, boolean verbose, int quality, boolean aan, int horizontal, int vertical) {
 		super(graphManager, input, output);
 		this.input = input;
 		this.output = output;
 		this.verbose = verbose;
-		this.quality = quality;
+		this.blocksPerMCU = horizontal * vertical;
+		if (aan) {
+			this.lumReciprocals = reciprocals(JPG.scaledQuantizationTable(0, quality), AANForwardDCT.scaleFactors);
+			this.chromReciprocals = reciprocals(JPG.scaledQuantizationTable(1, quality), AANForwardDCT.scaleFactors);
+		}
+		else {
+			this.lumReciprocals = reciprocals(JPG.scaledQuantizationTable(0, quality));
+			this.chromReciprocals = reciprocals(JPG.scaledQuantizationTable(1, quality));
+		}
 
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 	
 	@Override
 	public void startup() {
-		mcu = new MCU();
+		batch = new MCUBatch(input);
 	}
 	
-	private static void quantizeMCU(short[] MCU, QuantizationTable table) {
-		for (int i = 0; i < MCU.length; ++i) {
-			MCU[JPG.zigZagMap[i]] = (short)(MCU[JPG.zigZagMap[i]] / table.table[i]);
+	/**
+	 * Fixed point reciprocals of a table, with 32 fraction bits, rounded up so that
+	 * multiplying any 16 bit magnitude and shifting gives the same result as dividing.
+	 */
+	public static long[] reciprocals(QuantizationTable table) {
+		long[] reciprocals = new long[64];
+		for (int i = 0; i < 64; ++i) {
+			reciprocals[i] = ((1L << 32) + table.table[i] - 1) / table.table[i];
 		}
+		return reciprocals;
 	}
 	
-	public static void quantize(MCU mcu, int quality) {
-		if (quality == 50) {
-			quantizeMCU(mcu.y, JPG.qTable0_50);
-			quantizeMCU(mcu.cb, JPG.qTable1_50);
-			quantizeMCU(mcu.cr, JPG.qTable1_50);
-		}
-		else if (quality == 75) {
-			quantizeMCU(mcu.y, JPG.qTable0_75);
-			quantizeMCU(mcu.cb, JPG.qTable1_75);
-			quantizeMCU(mcu.cr, JPG.qTable1_75);
+	/**
+	 * Fixed point reciprocals of a table, with 32 fraction bits, that also divide out
+	 * the scaling a transform left on each coefficient.
+	 * @param table
+	 * @param scaleFactors what each coefficient was multiplied by, in natural (not zig zag) order
+	 */
+	public static long[] reciprocals(QuantizationTable table, double[] scaleFactors) {
+		long[] reciprocals = new long[64];
+		for (int i = 0; i < 64; ++i) {
+			reciprocals[i] = Math.round((1L << 32) / (table.table[i] * scaleFactors[JPG.zigZagMap[i]]));
 		}
-		else {
-			quantizeMCU(mcu.y, JPG.qTable0_100);
-			quantizeMCU(mcu.cb, JPG.qTable1_100);
-			quantizeMCU(mcu.cr, JPG.qTable1_100);
+		return reciprocals;
+	}
+	
+	private static void quantizeMCU(short[] MCU, long[] reciprocals) {
+		for (int i = 0; i < MCU.length; ++i) {
+			int value = MCU[JPG.zigZagMap[i]];
+			// divide the magnitude so the result truncates toward zero
+			int sign = value >> 31;
+			int quotient = (int)((((value ^ sign) - sign) * reciprocals[i]) >>> 32);
+			MCU[JPG.zigZagMap[i]] = (short)((quotient ^ sign) - sign);
 		}
-		return;
+	}
+	
+	public static void quantize(MCU mcu, long[] lumReciprocals, long[] chromReciprocals) {
+		quantizeMCU(mcu.y, lumReciprocals);
+		quantizeMCU(mcu.cb, chromReciprocals);
+		quantizeMCU(mcu.cr, chromReciprocals);
+	}
+	
+	public static void quantize(MCU mcu, int quality) {
+		quantize(mcu, reciprocals(JPG.scaledQuantizationTable(0, quality)),
+				 reciprocals(JPG.scaledQuantizationTable(1, quality)));
 	}
 
 	@Override
@@ -117,47 +165,20 @@ public class QuantizerStage extends PronghornStage {
 					requestShutdown();
 				}
 			}
-			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4) {
-				DataInputBlobReader<JPGSchema> mcuReader = PipeReader.inputStream(input, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-				for (int i = 0; i < 64; ++i) {
-					mcu.y[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cb[i] = mcuReader.readShort();
-				}
-				
-				for (int i = 0; i < 64; ++i) {
-					mcu.cr[i] = mcuReader.readShort();
-				}
+			else if (msgIdx == JPGSchema.MSG_MCUMESSAGE_4 || msgIdx == JPGSchema.MSG_MCUBATCHMESSAGE_5) {
+				batch.read(input, msgIdx);
 				PipeReader.releaseReadLock(input);
 				
-				quantize(mcu, quality);
-				//JPG.printMCU(mcu);
-
-				if (PipeWriter.tryWriteFragment(output, JPGSchema.MSG_MCUMESSAGE_4)) {
-					DataOutputBlobWriter<JPGSchema> mcuWriter = PipeWriter.outputStream(output);
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.y[i]);
+				for (int i = 0; i < batch.count; ++i) {
+					if (i % blocksPerMCU == 0) {
+						quantize(batch.mcus[i], lumReciprocals, chromReciprocals);
 					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_Y_104);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cb[i]);
+					else {
+						quantizeMCU(batch.mcus[i].y, lumReciprocals);
 					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CB_204);
-					
-					DataOutputBlobWriter.openField(mcuWriter);
-					for (int i = 0; i < 64; ++i) {
-						mcuWriter.writeShort(mcu.cr[i]);
-					}
-					DataOutputBlobWriter.closeHighLevelField(mcuWriter, JPGSchema.MSG_MCUMESSAGE_4_FIELD_CR_304);
-					
-					PipeWriter.publishWrites(output);
 				}
-				else {
+				
+				if (!batch.write(output)) {
 					logger.error("Quantizer requesting shutdown");
 					requestShutdown();
 				}
@@ -0,0 +1,216 @@
+package com.ociweb.jpgRaster;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.j2r.FusedDecoderStage;
+import com.ociweb.jpgRaster.j2r.JPGScannerStage;
+import com.ociweb.jpgRaster.j2r.RasterDumperStage;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+
+public class JPGRasterDecoderTest {
+
+    @Test
+    public void decodeTest() throws IOException {
+        ByteBuffer jpg = ByteBuffer.wrap(Files.readAllBytes(Paths.get("test_jpgs/white.jpg")));
+        JPGRasterDecoder decoder = new JPGRasterDecoder();
+        try {
+            byte[] pixels = new byte[4096 * 3];
+            Raster raster = decoder.decode(jpg, pixels);
+            assertTrue(raster.width > 0 && raster.height > 0);
+            assertTrue(raster.pixels == pixels);
+            for (int i = 0; i < raster.width * raster.height * 3; i++) {
+                assertTrue((pixels[i] & 0xFF) >= 254);
+            }
+            // the caller's buffer is left where it was
+            assertTrue(jpg.position() == 0);
+
+            boolean failed = false;
+            try {
+                decoder.decode(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            }
+            catch (IOException e) {
+                failed = true;
+            }
+            assertTrue(failed);
+
+            // a file cut off partway through its scan
+            byte[] car = Files.readAllBytes(Paths.get("test_jpgs/car.jpg"));
+            failed = false;
+            try {
+                decoder.decode(ByteBuffer.wrap(car, 0, 59689));
+            }
+            catch (IOException e) {
+                failed = true;
+            }
+            assertTrue(failed);
+
+            // the decoder is still usable after a bad image
+            assertTrue(decoder.decode(jpg).width == raster.width);
+        }
+        finally {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void truncatedFileTest() throws IOException, InterruptedException {
+        // the scanner reads file names from a queue the same way as the -d daemon mode
+        File truncated = File.createTempFile("truncated", ".jpg");
+        byte[] car = Files.readAllBytes(Paths.get("test_jpgs/car.jpg"));
+        Files.write(truncated.toPath(), Arrays.copyOf(car, 59689));
+
+        final Map<String, Raster> results = new ConcurrentHashMap<String, Raster>();
+        final CountDownLatch done = new CountDownLatch(2);
+        ConcurrentLinkedQueue<String> names = new ConcurrentLinkedQueue<String>();
+        GraphManager gm = new GraphManager();
+        Pipe<JPGSchema> pipe1 = JPGRaster.newPipe(64);
+        Pipe<JPGSchema> pipe2 = JPGRaster.newPipe(64);
+        new JPGScannerStage(gm, pipe1, false, false, false, 8, null, names, null);
+        new FusedDecoderStage(gm, pipe1, pipe2, false, false, false, 8);
+        new RasterDumperStage(gm, pipe2, false, new RasterDumperStage.Listener() {
+            @Override
+            public byte[] pixels(String name, int width, int height) {
+                return new byte[width * height * 3];
+            }
+
+            @Override
+            public void decoded(String name, Raster raster) {
+                if (raster != null) {
+                    results.put(name, raster);
+                }
+                done.countDown();
+            }
+        });
+        StageScheduler scheduler = StageScheduler.defaultScheduler(gm);
+        scheduler.startup();
+        try {
+            names.add(truncated.getPath());
+            names.add("test_jpgs/white.jpg");
+            // both files are answered, the truncated one without a Raster
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertTrue(!results.containsKey(truncated.getPath()));
+            assertTrue(results.containsKey("test_jpgs/white.jpg"));
+        }
+        finally {
+            scheduler.shutdown();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            truncated.delete();
+        }
+    }
+
+    @Test
+    public void closeTest() throws IOException, InterruptedException {
+        final ByteBuffer jpg = ByteBuffer.wrap(Files.readAllBytes(Paths.get("test_jpgs/turtle.jpg")));
+        final JPGRasterDecoder decoder = new JPGRasterDecoder();
+        final CountDownLatch finished = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        decoder.decode(jpg);
+                    }
+                    catch (IOException e) {
+                        // closed before this one was decoded
+                    }
+                    finished.countDown();
+                }
+            }.start();
+        }
+        decoder.close();
+        // no caller is left waiting on the stopped graph
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+
+        boolean failed = false;
+        try {
+            decoder.decode(jpg);
+        }
+        catch (IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    @Test
+    public void previewTest() throws IOException {
+        ByteBuffer jpg = ByteBuffer.wrap(Files.readAllBytes(Paths.get("test_jpgs/cat.jpg")));
+        JPGRasterDecoder decoder = new JPGRasterDecoder();
+        JPGRasterDecoder previewDecoder = new JPGRasterDecoder(false, false, false, 64, 8);
+        try {
+            Raster full = decoder.decode(jpg);
+            Raster preview = previewDecoder.decode(jpg);
+            assertTrue(preview.width == (full.width + 7) / 8);
+            assertTrue(preview.height == (full.height + 7) / 8);
+
+            // each preview pixel is close to the average of its 8x8 block
+            long difference = 0;
+            for (int y = 0; y < preview.height; y++) {
+                for (int x = 0; x < preview.width; x++) {
+                    for (int c = 0; c < 3; c++) {
+                        int sum = 0;
+                        int count = 0;
+                        for (int i = y * 8; i < Math.min(full.height, y * 8 + 8); i++) {
+                            for (int j = x * 8; j < Math.min(full.width, x * 8 + 8); j++) {
+                                sum += full.pixels[(i * full.width + j) * 3 + c] & 0xFF;
+                                count++;
+                            }
+                        }
+                        difference += Math.abs(sum / count - (preview.pixels[(y * preview.width + x) * 3 + c] & 0xFF));
+                    }
+                }
+            }
+            assertTrue(difference < 4 * preview.width * preview.height * 3);
+        }
+        finally {
+            decoder.close();
+            previewDecoder.close();
+        }
+    }
+
+    @Test
+    public void regionTest() throws IOException {
+        JPG.Region region = new JPG.Region();
+        region.x = 37;
+        region.y = 501;
+        region.width = 100;
+        region.height = 1000;
+        JPGRasterDecoder decoder = new JPGRasterDecoder();
+        JPGRasterDecoder regionDecoder = new JPGRasterDecoder(false, false, false, 64, 1, region);
+        try {
+            // with and without restart markers to skip to
+            for (String file : new String[] { "test_jpgs/earth_rst16.jpg", "test_jpgs/pyramids_2to1H.jpg" }) {
+                ByteBuffer jpg = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file)));
+                Raster full = decoder.decode(jpg);
+                Raster crop = regionDecoder.decode(jpg);
+                assertTrue(crop.width == Math.min(region.width, full.width - region.x));
+                assertTrue(crop.height == Math.min(region.height, full.height - region.y));
+                for (int y = 0; y < crop.height; y++) {
+                    for (int x = 0; x < crop.width * 3; x++) {
+                        assertTrue(crop.pixels[y * crop.width * 3 + x] ==
+                                   full.pixels[((y + region.y) * full.width + region.x) * 3 + x]);
+                    }
+                }
+            }
+        }
+        finally {
+            decoder.close();
+            regionDecoder.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ociweb.jpgRaster.j2r;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+
+public class IntegerIDCTTest {
+    // luminance table from jpeg_test.jpg, as in InverseQuantizerTest
+    private static final int[] qTable = new int[]{
+            2, 1, 1, 2, 3, 5, 6, 7,
+            1, 1, 2, 2, 3, 7, 7, 7,
+            2, 2, 2, 3, 5, 7, 8, 7,
+            2, 2, 3, 3, 6, 10, 10, 7,
+            2, 3, 4, 7, 8, 13, 12, 9,
+            3, 4, 7, 8, 10, 12, 14, 11,
+            6, 8, 9, 10, 12, 15, 14, 12,
+            9, 11, 11, 12, 13, 12, 12, 12
+    };
+
+    private void idctCheck(short[] coefficients) {
+        short[] expected = coefficients.clone();
+        short[] actual = coefficients.clone();
+        InverseDCTStage.TransformBlock(expected, new double[64]);
+        IntegerIDCT.transformBlock(actual, new int[64]);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(Math.abs(expected[i] - actual[i]) <= 1);
+        }
+    }
+
+    @Test
+    public void zeroIDCTTest() {
+        idctCheck(new short[64]);
+    }
+
+    @Test
+    public void dcOnlyIDCTTest() {
+        short[] block = new short[64];
+        for (int dc = -1024; dc <= 1016; dc += 8) {
+            block[0] = (short) dc;
+            idctCheck(block);
+        }
+    }
+
+    @Test
+    public void randomIDCTTest() {
+        Random rand = new Random(42);
+        for (int n = 0; n < 10000; n++) {
+            // dequantized coefficients, mostly zero at high frequencies like real scans
+            short[] block = new short[64];
+            int nonZero = 1 + rand.nextInt(64);
+            for (int i = 0; i < nonZero; i++) {
+                int range = 2048 / qTable[i] / (i + 1) + 1;
+                int value = rand.nextInt(2 * range + 1) - range;
+                block[JPG.zigZagMap[i]] = (short) (value * qTable[i]);
+            }
+            idctCheck(block);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.ociweb.jpgRaster.j2r;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReducedIDCTTest {
+
+    // the 8x8 inverse DCT evaluated at the center of the pixels that one reduced pixel stands for
+    private double sample(short[] coefficients, double x, double y) {
+        double sum = 0;
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                double cu = u == 0 ? 1 / Math.sqrt(2.0) / 2.0 : 1.0 / 2.0;
+                double cv = v == 0 ? 1 / Math.sqrt(2.0) / 2.0 : 1.0 / 2.0;
+                sum += coefficients[v * 8 + u] * cu * cv
+                        * Math.cos((2.0 * x + 1.0) * u * Math.PI / 16.0)
+                        * Math.cos((2.0 * y + 1.0) * v * Math.PI / 16.0);
+            }
+        }
+        return sum;
+    }
+
+    private void reducedCheck(short[] coefficients, int blockSize) {
+        short[] reduced = coefficients.clone();
+        InverseDCTStage.TransformBlock(reduced, new double[64], blockSize);
+        double scale = 8.0 / blockSize;
+        for (int y = 0; y < blockSize; y++) {
+            for (int x = 0; x < blockSize; x++) {
+                double expected = sample(coefficients, (x + 0.5) * scale - 0.5, (y + 0.5) * scale - 0.5);
+                assertTrue(Math.abs(reduced[y * 8 + x] - expected) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void dcOnlyReducedTest() {
+        short[] block = new short[64];
+        for (int dc = -1024; dc <= 1016; dc += 8) {
+            block[0] = (short) dc;
+            for (int blockSize = 1; blockSize < 8; blockSize *= 2) {
+                reducedCheck(block, blockSize);
+            }
+        }
+    }
+
+    @Test
+    public void randomReducedTest() {
+        Random rand = new Random(42);
+        for (int n = 0; n < 10000; n++) {
+            // the frequencies that a block of this size can still show
+            for (int blockSize = 2; blockSize < 8; blockSize *= 2) {
+                short[] block = new short[64];
+                for (int v = 0; v < blockSize; v++) {
+                    for (int u = 0; u < blockSize; u++) {
+                        int range = 1024 / (u + v + 1);
+                        block[v * 8 + u] = (short) (rand.nextInt(2 * range + 1) - range);
+                    }
+                }
+                reducedCheck(block, blockSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.ociweb.jpgRaster.j2r;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+
+public class YCbCrToRGBTest {
+
+    private void colorCheck(JPG.MCU input) {
+        JPG.MCU expected = new JPG.MCU();
+        JPG.MCU actual = new JPG.MCU();
+        for (int i = 0; i < 64; i++) {
+            expected.y[i] = actual.y[i] = input.y[i];
+            expected.cb[i] = actual.cb[i] = input.cb[i];
+            expected.cr[i] = actual.cr[i] = input.cr[i];
+        }
+        YCbCrToRGBStage.convertYCbCrToRGB(expected, true);
+        YCbCrToRGBStage.convertYCbCrToRGB(actual, false);
+        for (int i = 0; i < 64; i++) {
+            // both paths store the 0..255 result as a signed byte
+            assertTrue(Math.abs((expected.y[i] & 0xFF) - (actual.y[i] & 0xFF)) <= 1);
+            assertTrue(Math.abs((expected.cb[i] & 0xFF) - (actual.cb[i] & 0xFF)) <= 1);
+            assertTrue(Math.abs((expected.cr[i] & 0xFF) - (actual.cr[i] & 0xFF)) <= 1);
+        }
+    }
+
+    @Test
+    public void grayTableTest() {
+        JPG.MCU mcu = new JPG.MCU();
+        for (int y = -128; y < 128; y += 64) {
+            for (int i = 0; i < 64; i++) {
+                mcu.y[i] = (short) (y + i);
+                mcu.cb[i] = 0;
+                mcu.cr[i] = 0;
+            }
+            colorCheck(mcu);
+        }
+    }
+
+    @Test
+    public void sweepTableTest() {
+        JPG.MCU mcu = new JPG.MCU();
+        int i = 0;
+        for (int y = -128; y < 128; y += 3) {
+            for (int cb = -128; cb < 128; cb += 5) {
+                for (int cr = -128; cr < 128; cr += 7) {
+                    mcu.y[i] = (short) y;
+                    mcu.cb[i] = (short) cb;
+                    mcu.cr[i] = (short) cr;
+                    i += 1;
+                    if (i == 64) {
+                        colorCheck(mcu);
+                        i = 0;
+                    }
+                }
+            }
+        }
+    }
+}
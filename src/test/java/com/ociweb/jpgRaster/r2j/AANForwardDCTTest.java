@@ -0,0 +1,80 @@
+package com.ociweb.jpgRaster.r2j;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+
+public class AANForwardDCTTest {
+
+    // the DCT of the JPEG standard, straight from its definition
+    private double[] referenceDCT(short[] block) {
+        double[] out = new double[64];
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                double cu = u == 0 ? 1 / Math.sqrt(2.0) : 1;
+                double cv = v == 0 ? 1 / Math.sqrt(2.0) : 1;
+                double sum = 0;
+                for (int x = 0; x < 8; x++) {
+                    for (int y = 0; y < 8; y++) {
+                        sum += block[x * 8 + y]
+                                * Math.cos((2 * x + 1) * u * Math.PI / 16)
+                                * Math.cos((2 * y + 1) * v * Math.PI / 16);
+                    }
+                }
+                out[u * 8 + v] = cu * cv * sum / 4;
+            }
+        }
+        return out;
+    }
+
+    private short[] randomBlock(Random rand) {
+        short[] block = new short[64];
+        for (int i = 0; i < 64; i++) {
+            block[i] = (short) (rand.nextInt(256) - 128);
+        }
+        return block;
+    }
+
+    @Test
+    public void scaledOutputTest() {
+        Random rand = new Random(22);
+        float[] workspace = new float[64];
+        for (int n = 0; n < 100; n++) {
+            short[] block = randomBlock(rand);
+            double[] expected = referenceDCT(block);
+            AANForwardDCT.transformBlock(block, workspace);
+            for (int i = 0; i < 64; i++) {
+                // off by no more than rounding the scaled output to a whole number
+                double error = 0.5 / AANForwardDCT.scaleFactors[i] + 0.01;
+                assertTrue(Math.abs(block[i] / AANForwardDCT.scaleFactors[i] - expected[i]) <= error);
+            }
+        }
+    }
+
+    @Test
+    public void quantizeTest() {
+        // the quantizer's reciprocals take out the scaling, leaving the same values as
+        // quantizing the reference DCT, but for values right at a rounding boundary
+        Random rand = new Random(23);
+        float[] workspace = new float[64];
+        for (int quality = 10; quality <= 100; quality += 30) {
+            JPG.QuantizationTable table = JPG.scaledQuantizationTable(0, quality);
+            long[] reciprocals = QuantizerStage.reciprocals(table, AANForwardDCT.scaleFactors);
+            for (int n = 0; n < 100; n++) {
+                JPG.MCU mcu = new JPG.MCU();
+                mcu.y = randomBlock(rand);
+                double[] expected = referenceDCT(mcu.y);
+                AANForwardDCT.transformBlock(mcu.y, workspace);
+                QuantizerStage.quantize(mcu, reciprocals, reciprocals);
+                for (int i = 0; i < 64; i++) {
+                    double value = expected[JPG.zigZagMap[i]] / table.table[i];
+                    assertTrue(Math.abs(mcu.y[JPG.zigZagMap[i]] - (int) value) <= 1);
+                }
+            }
+        }
+    }
+}
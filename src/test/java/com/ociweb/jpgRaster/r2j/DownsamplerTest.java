@@ -0,0 +1,75 @@
+package com.ociweb.jpgRaster.r2j;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+
+public class DownsamplerTest {
+
+    // chroma value at column x and row y of an MCU of horizontal x vertical blocks
+    private int value(short[][] component, int horizontal, int x, int y) {
+        return component[(y / 8) * horizontal + x / 8][(y % 8) * 8 + x % 8];
+    }
+
+    private void downsampleCheck(int horizontal, int vertical) {
+        Random rand = new Random(horizontal * 10 + vertical);
+        JPG.MCU[] mcus = new JPG.MCU[horizontal * vertical];
+        short[][] cb = new short[mcus.length][64];
+        short[][] cr = new short[mcus.length][64];
+        for (int m = 0; m < mcus.length; m++) {
+            mcus[m] = new JPG.MCU();
+            for (int i = 0; i < 64; i++) {
+                cb[m][i] = mcus[m].cb[i] = (short) (rand.nextInt(256) - 128);
+                cr[m][i] = mcus[m].cr[i] = (short) (rand.nextInt(256) - 128);
+            }
+        }
+        DownsamplerStage.downsample(mcus, 0, horizontal, vertical, new short[64], new short[64]);
+
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                int sumCB = 0;
+                int sumCR = 0;
+                for (int y = 0; y < vertical; y++) {
+                    for (int x = 0; x < horizontal; x++) {
+                        sumCB += value(cb, horizontal, j * horizontal + x, i * vertical + y);
+                        sumCR += value(cr, horizontal, j * horizontal + x, i * vertical + y);
+                    }
+                }
+                double count = horizontal * vertical;
+                assertTrue(Math.abs(mcus[0].cb[i * 8 + j] - sumCB / count) <= 0.5);
+                assertTrue(Math.abs(mcus[0].cr[i * 8 + j] - sumCR / count) <= 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void downsample420Test() {
+        downsampleCheck(2, 2);
+    }
+
+    @Test
+    public void downsample422Test() {
+        downsampleCheck(2, 1);
+    }
+
+    @Test
+    public void constantTest() {
+        JPG.MCU[] mcus = new JPG.MCU[4];
+        for (int m = 0; m < 4; m++) {
+            mcus[m] = new JPG.MCU();
+            for (int i = 0; i < 64; i++) {
+                mcus[m].cb[i] = -37;
+                mcus[m].cr[i] = 90;
+            }
+        }
+        DownsamplerStage.downsample(mcus, 0, 2, 2, new short[64], new short[64]);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(mcus[0].cb[i] == -37);
+            assertTrue(mcus[0].cr[i] == 90);
+        }
+    }
+}
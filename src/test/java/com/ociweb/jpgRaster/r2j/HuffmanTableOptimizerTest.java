@@ -0,0 +1,86 @@
+package com.ociweb.jpgRaster.r2j;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+
+public class HuffmanTableOptimizerTest {
+
+    // code length of every symbol, 0 for symbols left out
+    private int[] codeLengths(JPG.HuffmanTable table) {
+        int[] lengths = new int[256];
+        for (int i = 0; i < 16; i++) {
+            for (short symbol : table.symbols.get(i)) {
+                assertTrue(lengths[symbol] == 0);
+                lengths[symbol] = i + 1;
+            }
+        }
+        return lengths;
+    }
+
+    private void optimalCheck(long[] frequencies) {
+        JPG.HuffmanTable table = HuffmanTableOptimizer.optimalTable(frequencies, 0);
+        assertTrue(table.symbols.size() == 16);
+        int[] lengths = codeLengths(table);
+
+        // a valid prefix code that leaves the code of all 1 bits unused
+        double kraft = 0;
+        for (int i = 0; i < 256; i++) {
+            assertTrue((lengths[i] != 0) == (frequencies[i] != 0));
+            if (lengths[i] != 0) {
+                kraft += Math.pow(2, -lengths[i]);
+            }
+        }
+        assertTrue(kraft < 1);
+
+        // a more frequent symbol never has a longer code
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 256; j++) {
+                if (frequencies[i] > frequencies[j] && frequencies[j] != 0) {
+                    assertTrue(lengths[i] <= lengths[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void singleSymbolTest() {
+        long[] frequencies = new long[256];
+        frequencies[0] = 1000;
+        optimalCheck(frequencies);
+        assertTrue(codeLengths(HuffmanTableOptimizer.optimalTable(frequencies, 0))[0] == 1);
+    }
+
+    @Test
+    public void randomFrequenciesTest() {
+        Random rand = new Random(7);
+        for (int n = 0; n < 100; n++) {
+            long[] frequencies = new long[256];
+            for (int i = 0; i < 256; i++) {
+                if (rand.nextInt(4) != 0) {
+                    frequencies[i] = rand.nextInt(100000);
+                }
+            }
+            optimalCheck(frequencies);
+        }
+    }
+
+    @Test
+    public void lengthLimitTest() {
+        // counts that grow like the Fibonacci numbers give codes far longer than 16 bits before limiting
+        long[] frequencies = new long[256];
+        long a = 1;
+        long b = 1;
+        for (int i = 0; i < 40; i++) {
+            frequencies[i] = a;
+            long next = a + b;
+            a = b;
+            b = next;
+        }
+        optimalCheck(frequencies);
+    }
+}
@@ -0,0 +1,126 @@
+package com.ociweb.jpgRaster.r2j;
+
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.ociweb.jpgRaster.JPG;
+import com.ociweb.jpgRaster.JPG.ColorComponent;
+import com.ociweb.jpgRaster.JPG.Header;
+import com.ociweb.jpgRaster.JPG.QuantizationTable;
+
+public class ProgressiveEncoderTest {
+
+    private static final QuantizationTable[] QTables = {
+        JPG.scaledQuantizationTable(0, 50), JPG.scaledQuantizationTable(1, 50)
+    };
+
+    // sample at row x and column y of a block, straight from the definition of the inverse DCT
+    private double inverseDCT(short[] coefficients, int offset, QuantizationTable table, int x, int y) {
+        double sum = 0;
+        for (int k = 0; k < 64; k++) {
+            int u = JPG.zigZagMap[k] / 8;
+            int v = JPG.zigZagMap[k] % 8;
+            double cu = u == 0 ? 1 / Math.sqrt(2.0) : 1;
+            double cv = v == 0 ? 1 / Math.sqrt(2.0) : 1;
+            sum += cu * cv * coefficients[offset + JPG.zigZagMap[k]] * table.table[k]
+                    * Math.cos((2 * x + 1) * u * Math.PI / 16)
+                    * Math.cos((2 * y + 1) * v * Math.PI / 16);
+        }
+        return sum / 4;
+    }
+
+    private int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    // random quantized blocks, in the order the encoder buffers them
+    private short[] randomCoefficients(Random rand, int numBlocks, int horizontal, int vertical) {
+        short[] coefficients = new short[numBlocks * 192];
+        for (int i = 0; i < numBlocks; i++) {
+            coefficients[i * 192] = (short) (rand.nextInt(61) - 30);
+            for (int j = 1; j < 64; j++) {
+                // mostly zeroes, with the odd value large enough to need refining
+                if (rand.nextInt(4) == 0) {
+                    coefficients[i * 192 + j] = (short) (rand.nextInt(13) - 6);
+                }
+            }
+            if (horizontal * vertical == 1) {
+                for (int j = 64; j < 192; j++) {
+                    if (j % 64 == 0 || rand.nextInt(8) == 0) {
+                        coefficients[i * 192 + j] = (short) (rand.nextInt(9) - 4);
+                    }
+                }
+            }
+            else {
+                // flat chroma, so the decoder's upsampling cannot change it
+                coefficients[i * 192 + 64] = 3;
+                coefficients[i * 192 + 128] = -2;
+            }
+        }
+        return coefficients;
+    }
+
+    private void progressiveCheck(int width, int height, int horizontal, int vertical) throws IOException {
+        Random rand = new Random(width * 100 + horizontal * 10 + vertical);
+        int numBlocks = ((height + 8 * vertical - 1) / (8 * vertical) * vertical) *
+                        ((width + 8 * horizontal - 1) / (8 * horizontal) * horizontal);
+        short[] coefficients = randomCoefficients(rand, numBlocks, horizontal, vertical);
+        ArrayList<ProgressiveEncoder.Scan> scans = new ProgressiveEncoder(horizontal, vertical).encode(coefficients, width, height);
+        assertTrue(scans.size() == 10);
+
+        File file = File.createTempFile("progressive", ".jpg");
+        try {
+            Header header = new Header();
+            header.width = width;
+            header.height = height;
+            header.filename = file.getPath();
+            header.colorComponents[0] = new ColorComponent();
+            header.colorComponents[0].horizontalSamplingFactor = (short) horizontal;
+            header.colorComponents[0].verticalSamplingFactor = (short) vertical;
+            JPGDumper.dumper(header, false, QTables, scans);
+
+            BufferedImage image = ImageIO.read(file);
+            assertTrue(image.getWidth() == width && image.getHeight() == height);
+            int mcuColumns = (width + 8 * horizontal - 1) / (8 * horizontal);
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    int mcu = (i / (8 * vertical)) * mcuColumns + j / (8 * horizontal);
+                    int block = mcu * horizontal * vertical + (i / 8 % vertical) * horizontal + j / 8 % horizontal;
+                    // each component is clamped on its own before the color conversion
+                    int Y = clamp(inverseDCT(coefficients, block * 192, QTables[0], i % 8, j % 8) + 128);
+                    // the chroma of an MCU is in its first block, at full size when not subsampled
+                    int first = mcu * horizontal * vertical;
+                    int Cb = clamp(inverseDCT(coefficients, first * 192 + 64, QTables[1], i % 8, j % 8) + 128) - 128;
+                    int Cr = clamp(inverseDCT(coefficients, first * 192 + 128, QTables[1], i % 8, j % 8) + 128) - 128;
+
+                    int rgb = image.getRGB(j, i);
+                    assertTrue(Math.abs(((rgb >> 16) & 0xFF) - clamp(Y + 1.402 * Cr)) <= 3);
+                    assertTrue(Math.abs(((rgb >> 8) & 0xFF) - clamp(Y - 0.344136 * Cb - 0.714136 * Cr)) <= 3);
+                    assertTrue(Math.abs((rgb & 0xFF) - clamp(Y + 1.772 * Cb)) <= 3);
+                }
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void progressive444Test() throws IOException {
+        progressiveCheck(43, 29, 1, 1);
+    }
+
+    @Test
+    public void progressive420Test() throws IOException {
+        progressiveCheck(43, 29, 2, 2);
+    }
+}
@@ -94,4 +94,43 @@ public class QuantizerTest {
         // Check output MCU against expected result
         quantizeCheck(inputmcu, outputmcu);
     }
+
+    @Test
+    public void scaledTableTest() {
+        for (int i = 0; i < 64; i++) {
+            assertTrue(JPG.scaledQuantizationTable(0, 50).table[i] == JPG.qTable0_50.table[i]);
+            assertTrue(JPG.scaledQuantizationTable(1, 50).table[i] == JPG.qTable1_50.table[i]);
+            assertTrue(JPG.scaledQuantizationTable(0, 100).table[i] == 1);
+            assertTrue(JPG.scaledQuantizationTable(1, 100).table[i] == 1);
+        }
+        // a higher quality never divides by more
+        for (int quality = 1; quality < 100; quality++) {
+            JPG.QuantizationTable lower = JPG.scaledQuantizationTable(0, quality);
+            JPG.QuantizationTable higher = JPG.scaledQuantizationTable(0, quality + 1);
+            for (int i = 0; i < 64; i++) {
+                assertTrue(lower.table[i] >= higher.table[i]);
+                assertTrue(lower.table[i] >= 1 && lower.table[i] <= 255);
+            }
+        }
+    }
+
+    @Test
+    public void scaledQuantizeTest() {
+        // every 16 bit value, positive and negative, rounds toward zero like a division
+        for (int quality = 1; quality <= 100; quality += 11) {
+            header.quantizationTables[0] = JPG.scaledQuantizationTable(0, quality);
+            header.quantizationTables[1] = JPG.scaledQuantizationTable(1, quality);
+            for (int value = Short.MIN_VALUE; value <= Short.MAX_VALUE; value += 64) {
+                JPG.MCU inputmcu = new JPG.MCU();
+                JPG.MCU outputmcu = new JPG.MCU();
+                for (int i = 0; i < 64; i++) {
+                    inputmcu.y[i] = outputmcu.y[i] = (short) (value + i);
+                    inputmcu.cb[i] = outputmcu.cb[i] = (short) (value + i);
+                    inputmcu.cr[i] = outputmcu.cr[i] = (short) -(value + i);
+                }
+                QuantizerStage.quantize(outputmcu, quality);
+                quantizeCheck(inputmcu, outputmcu);
+            }
+        }
+    }
 }